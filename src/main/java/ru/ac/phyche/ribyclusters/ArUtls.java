@@ -1,11 +1,11 @@
 package ru.ac.phyche.ribyclusters;
 
-import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.stream.IntStream;
 
 import org.apache.commons.lang3.tuple.Pair;
 import de.bwaldvogel.liblinear.Feature;
@@ -410,6 +410,27 @@ public class ArUtls {
 		return result;
 	}
 
+	/**
+	 * 
+	 * @param a rows
+	 * @param b rows
+	 * @return squared euclidean distances, a.length x b.length row-major
+	 */
+	public static float[] squaredDistances(float[][] a, float[][] b) {
+		float[] result = new float[a.length * b.length];
+		IntStream.range(0, a.length).parallel().forEach(i -> {
+			for (int j = 0; j < b.length; j++) {
+				double sum = 0;
+				for (int k = 0; k < a[i].length; k++) {
+					double d = a[i][k] - b[j][k];
+					sum += d * d;
+				}
+				result[i * b.length + j] = (float) sum;
+			}
+		});
+		return result;
+	}
+
 	public static int[] ints(int n) {
 		int[] a = new int[n];
 		for (int i = 0; i < n; i++) {
@@ -602,19 +623,19 @@ public class ArUtls {
 		return Pair.of(result1, result2);
 	}
 
+	/**
+	 * Dense XGBoost matrix with labels, built in memory. All values are present
+	 * (including zeros), as in the matrices used for prediction (see XgbRI).
+	 * 
+	 * @param features features
+	 * @param labels   labels
+	 * @return DMatrix
+	 * @throws IOException XGBoost error
+	 */
 	public static DMatrix dataSetToXGBooostDMatrix(float[][] features, float[] labels) throws IOException {
-		FileWriter f = new FileWriter("./XGBoost.tmp");
-		for (int i = 0; i < labels.length; i++) {
-			f.write(labels[i] + " ");
-			for (int j = 0; j < features[i].length; j++) {
-				f.write(j + ":" + features[i][j] + " ");
-			}
-			f.write("\n");
-		}
-		f.close();
 		try {
-			DMatrix mat = new DMatrix("./XGBoost.tmp");
-			(new File("./XGBoost.tmp")).delete();
+			DMatrix mat = new DMatrix(flatten(features), features.length, features[0].length, -777f);
+			mat.setLabel(labels);
 			return mat;
 		} catch (XGBoostError e) {
 			throw new IOException(e.getMessage());
@@ -0,0 +1,80 @@
+package ru.ac.phyche.ribyclusters;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import ru.ac.phyche.ribyclusters.models.QSRRModelRI;
+import ru.ac.phyche.ribyclusters.models.QSRRModelRI.AccuracyMeasure;
+
+/**
+ * Metrics of training of a model for one cluster of RIByClusters. One CSV line
+ * per cluster (see csvHeader). Times are in milliseconds, memory in megabytes.
+ * Features time is time spent in computation of features inside the model,
+ * fit time is the rest of training time (including hyperparameters tuning).
+ * Peak heap is the peak of JVM heap during training; if several clusters are
+ * trained concurrently, it is shared by them.
+ */
+public class ClusterTrainingMetrics {
+	int cluster;
+	int trainSize;
+	int validationSize;
+	int tuningTrials = 0;
+	long trainNanos = 0;
+	long featuresNanos = 0;
+	long validationNanos = 0;
+	long checkpointNanos = 0;
+	long peakHeapBytes = 0;
+	String validation = null;
+	String modelInfo = "";
+
+	ClusterTrainingMetrics(int cluster, int trainSize, int validationSize) {
+		this.cluster = cluster;
+		this.trainSize = trainSize;
+		this.validationSize = validationSize;
+	}
+
+	/**
+	 * Peak heap usage counters of JVM are reset.
+	 */
+	static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return sum of peak usages of heap memory pools since the last reset
+	 */
+	static long peakHeap() {
+		long result = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				result += pool.getPeakUsage().getUsed();
+			}
+		}
+		return result;
+	}
+
+	public static String csvHeader() {
+		return "cluster,trainSize,validationSize,tuningTrials,trainMs,featuresMs,fitMs,validationMs,checkpointMs,"
+				+ "peakHeapMB,RMSE,MAE,MdAE,MPE,MdPE,modelInfo";
+	}
+
+	private static String accuracy(AccuracyMeasure m, String validation) {
+		return validation == null ? "" : QSRRModelRI.accuracy(m, validation) + "";
+	}
+
+	public String toCsv() {
+		long ms = 1000000;
+		return cluster + "," + trainSize + "," + validationSize + "," + tuningTrials + "," + trainNanos / ms + ","
+				+ featuresNanos / ms + "," + (trainNanos - featuresNanos) / ms + "," + validationNanos / ms + ","
+				+ checkpointNanos / ms + "," + peakHeapBytes / (1024 * 1024) + ","
+				+ accuracy(AccuracyMeasure.RMSE, validation) + "," + accuracy(AccuracyMeasure.MAE, validation) + ","
+				+ accuracy(AccuracyMeasure.MDAE, validation) + "," + accuracy(AccuracyMeasure.MPE, validation) + ","
+				+ accuracy(AccuracyMeasure.MDPE, validation) + ",\"" + modelInfo.trim().replace('"', '\'') + "\"";
+	}
+}
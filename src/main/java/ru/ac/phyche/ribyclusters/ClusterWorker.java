@@ -0,0 +1,156 @@
+package ru.ac.phyche.ribyclusters;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+
+import com.thoughtworks.xstream.XStream;
+
+import ru.ac.phyche.ribyclusters.featuregenerators.FeaturesGenerator;
+import ru.ac.phyche.ribyclusters.models.QSRRModelRI;
+
+/**
+ * Worker process for training of a model for one cluster of RIByClusters in a
+ * separate JVM. The only argument is a task directory written by writeTask:
+ * train.ri, validation.ri, features.txt (precomputed molecular features of all
+ * entries), template.xml (untrained model from createSimilar without features
+ * generator). The trained model is saved to the model subdirectory of the task
+ * directory, training metrics to metrics.txt.
+ */
+public class ClusterWorker {
+
+	/**
+	 * Features generator that contains only precomputed (loaded) features.
+	 */
+	private static class PrecomputedFeaturesGenerator extends FeaturesGenerator {
+		private int numFeatures = 0;
+
+		@Override
+		public void precompute(HashSet<String> smilesStrings) {
+			for (String s : smilesStrings) {
+				if (!precomputedForMol(s)) {
+					throw new RuntimeException("Features for " + s + " are not sent to worker");
+				}
+			}
+		}
+
+		@Override
+		public String getName(int i) {
+			return "feature" + i;
+		}
+
+		@Override
+		public int getNumFeatures() {
+			return numFeatures;
+		}
+	}
+
+	/**
+	 * Only untrained templates are sent: cluster models and column features.
+	 */
+	private static XStream xstream() {
+		XStream xstream = new XStream();
+		xstream.allowTypes(new String[] { "ru.ac.phyche.ribyclusters.models.LibLinearRI",
+				"ru.ac.phyche.ribyclusters.models.LibSVMRI", "ru.ac.phyche.ribyclusters.models.RidgeRI",
+				"ru.ac.phyche.ribyclusters.models.XgbRI", "ru.ac.phyche.ribyclusters.models.NystromRI",
+				"ru.ac.phyche.ribyclusters.ColumnFeatures$NonpolarColumnShortFeatures",
+				"ru.ac.phyche.ribyclusters.ColumnFeatures$NonpolarColumnLongFeatures",
+				"ru.ac.phyche.ribyclusters.ColumnFeatures$PolarColumnLongFeatures",
+				"ru.ac.phyche.ribyclusters.ColumnFeatures$NoColumnFeatures" });
+		return xstream;
+	}
+
+	/**
+	 * Write task for the worker process.
+	 *
+	 * @param directory task directory
+	 * @param template  untrained model, shared features are not sent
+	 * @param train     training set
+	 * @param val       validation set
+	 * @throws IOException io exception
+	 */
+	static void writeTask(File directory, QSRRModelRI template, ChemDataset train, ChemDataset val)
+			throws IOException {
+		train.saveToFile(new File(directory, "train.ri").getAbsolutePath());
+		val.saveToFile(new File(directory, "validation.ri").getAbsolutePath());
+		FeaturesGenerator gen = template.getGen();
+		FileWriter fw = new FileWriter(new File(directory, "features.txt"));
+		HashSet<String> smiles = new HashSet<String>();
+		for (ChemDataset d : new ChemDataset[] { train, val }) {
+			for (int i = 0; i < d.size(); i++) {
+				smiles.add(d.getSmiles(i));
+			}
+		}
+		gen.precompute(smiles);
+		fw.write(gen.getNumFeatures() + "\n");
+		for (String s : smiles) {
+			fw.write(s);
+			float[] f = gen.featuresForMol(s);
+			for (int i = 0; i < f.length; i++) {
+				fw.write(" " + f[i]);
+			}
+			fw.write("\n");
+		}
+		fw.close();
+		FeatureMatrix shared = template.getSharedFeatures();
+		template.setSharedFeatures(null);
+		template.setGen(null);
+		try {
+			fw = new FileWriter(new File(directory, "template.xml"));
+			fw.write(xstream().toXML(template));
+			fw.close();
+		} finally {
+			template.setGen(gen);
+			template.setSharedFeatures(shared);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		File directory = new File(args[0]);
+		ChemDataset train = ChemDataset.loadFromFile(new File(directory, "train.ri").getAbsolutePath());
+		ChemDataset val = ChemDataset.loadFromFile(new File(directory, "validation.ri").getAbsolutePath());
+		QSRRModelRI model = (QSRRModelRI) xstream().fromXML(new File(directory, "template.xml"));
+		PrecomputedFeaturesGenerator gen = new PrecomputedFeaturesGenerator();
+		File features = new File(directory, "features.txt");
+		BufferedReader br = new BufferedReader(new FileReader(features));
+		gen.numFeatures = Integer.parseInt(br.readLine().trim());
+		String s = br.readLine();
+		while (s != null) {
+			String[] split = s.trim().split("\\s+");
+			float[] f = new float[split.length - 1];
+			for (int i = 0; i < f.length; i++) {
+				f[i] = Float.parseFloat(split[i + 1]);
+			}
+			gen.putPrecomputed(split[0], f);
+			s = br.readLine();
+		}
+		br.close();
+		model.setGen(gen);
+		long t = System.nanoTime();
+		model.train(train, val);
+		t = System.nanoTime() - t;
+		model.save(new File(directory, "model").getAbsolutePath());
+		FileWriter fw = new FileWriter(new File(directory, "metrics.txt"));
+		fw.write(t + " " + model.featuresTimeNanos() + " " + ClusterTrainingMetrics.peakHeap() + "\n");
+		fw.close();
+	}
+
+	/**
+	 * Training metrics written by the worker process (training time, features
+	 * time, peak heap of the worker).
+	 */
+	static ClusterTrainingMetrics readMetrics(File directory, int cluster, ChemDataset train, ChemDataset val)
+			throws IOException {
+		ClusterTrainingMetrics result = new ClusterTrainingMetrics(cluster, train.size(), val.size());
+		BufferedReader br = new BufferedReader(new FileReader(new File(directory, "metrics.txt")));
+		String[] split = br.readLine().trim().split("\\s+");
+		br.close();
+		result.trainNanos = Long.parseLong(split[0]);
+		result.featuresNanos = Long.parseLong(split[1]);
+		result.peakHeapBytes = Long.parseLong(split[2]);
+		return result;
+	}
+}
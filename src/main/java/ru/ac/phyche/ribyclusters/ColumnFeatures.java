@@ -11,7 +11,29 @@ public abstract class ColumnFeatures {
 		return result;
 	}
 
+	/**
+	 * Default implementation computes features of the first column (0, 1, ...)
+	 * supported by columnFeatures(int), subclasses override it with a constant.
+	 * 
+	 * @return number of column features (the same for all columns)
+	 */
+	public int getNumFeatures() {
+		for (int column = 0; column < 64; column++) {
+			try {
+				return columnFeatures(column).length;
+			} catch (RuntimeException e) {
+				// column is not supported, try next
+			}
+		}
+		throw new RuntimeException("Cannot determine number of column features");
+	}
+
 	public static class NonpolarColumnShortFeatures extends ColumnFeatures {
+		@Override
+		public int getNumFeatures() {
+			return 3;
+		}
+
 		@Override
 		public float[] columnFeatures(int column) {
 			float[] result = new float[3];
@@ -30,6 +52,11 @@ public abstract class ColumnFeatures {
 
 	public static class NonpolarColumnLongFeatures extends ColumnFeatures {
 
+		@Override
+		public int getNumFeatures() {
+			return 39;
+		}
+
 		@Override
 		public float[] columnFeatures(int column) {
 			float[] result = new float[39];
@@ -50,6 +77,11 @@ public abstract class ColumnFeatures {
 
 	public static class PolarColumnLongFeatures extends ColumnFeatures {
 
+		@Override
+		public int getNumFeatures() {
+			return 21;
+		}
+
 		@Override
 		public float[] columnFeatures(int column) {
 			float[] result = new float[21];
@@ -60,6 +92,11 @@ public abstract class ColumnFeatures {
 	}
 
 	public static class NoColumnFeatures extends ColumnFeatures {
+		@Override
+		public int getNumFeatures() {
+			return 0;
+		}
+
 		@Override
 		public float[] columnFeatures(int column) {
 			return new float[] {};
@@ -0,0 +1,125 @@
+package ru.ac.phyche.ribyclusters;
+
+import java.util.HashMap;
+
+import ru.ac.phyche.ribyclusters.featuregenerators.FeaturesGenerator;
+
+/**
+ * Features of data set entries (column features merged with molecular
+ * features) computed once and shared between several models, e.g. models for
+ * different clusters of RIByClusters. One row per pair (SMILES, column). All
+ * rows are stored in one flat array (row r starts at r * width), so the matrix
+ * is limited to Integer.MAX_VALUE values (ArithmeticException otherwise).
+ * Models get copies of the rows they request.
+ */
+public class FeatureMatrix {
+	private FeaturesGenerator gen;
+	private ColumnFeatures genCol;
+	// SMILES -> column -> row number
+	private HashMap<String, HashMap<Integer, Integer>> index = new HashMap<String, HashMap<Integer, Integer>>();
+	private int numRows = 0;
+	private int width = 0;
+	private float[] data;
+
+	/**
+	 * 
+	 * @param sets   data sets, features are computed for all entries
+	 * @param genCol column features
+	 * @param gen    molecular features
+	 */
+	public FeatureMatrix(ChemDataset[] sets, ColumnFeatures genCol, FeaturesGenerator gen) {
+		this.gen = gen;
+		this.genCol = genCol;
+		for (ChemDataset set : sets) {
+			gen.precompute(set);
+			for (int i = 0; i < set.size(); i++) {
+				HashMap<Integer, Integer> columns = index.get(set.getSmiles(i));
+				if (columns == null) {
+					columns = new HashMap<Integer, Integer>();
+					index.put(set.getSmiles(i), columns);
+				}
+				if (!columns.containsKey(set.getColumn(i))) {
+					columns.put(set.getColumn(i), numRows);
+					numRows++;
+				}
+			}
+		}
+		boolean[] filled = new boolean[numRows];
+		for (ChemDataset set : sets) {
+			for (int i = 0; i < set.size(); i++) {
+				int r = index.get(set.getSmiles(i)).get(set.getColumn(i));
+				if (!filled[r]) {
+					float[] row = ArUtls.mergeArrays(genCol.columnFeatures(set.getColumn(i)),
+							gen.featuresForMol(set.getSmiles(i)));
+					if (data == null) {
+						width = row.length;
+						data = new float[Math.multiplyExact(numRows, width)];
+					}
+					if (row.length != width) {
+						throw new RuntimeException("Different numbers of features for different entries");
+					}
+					System.arraycopy(row, 0, data, r * width, width);
+					filled[r] = true;
+				}
+			}
+		}
+		if (data == null) {
+			data = new float[0];
+		}
+	}
+
+	/**
+	 * 
+	 * @param genCol column features
+	 * @param gen    molecular features
+	 * @return true if this matrix was computed with these generators
+	 */
+	public boolean isFor(ColumnFeatures genCol, FeaturesGenerator gen) {
+		return (this.gen == gen) && (this.genCol == genCol);
+	}
+
+	/**
+	 * 
+	 * @param smiles  SMILES strings
+	 * @param columns columns
+	 * @return row numbers, null if some entries are absent
+	 */
+	public int[] rowIndices(String[] smiles, int[] columns) {
+		int[] result = new int[smiles.length];
+		for (int i = 0; i < smiles.length; i++) {
+			HashMap<Integer, Integer> c = index.get(smiles[i]);
+			Integer r = (c == null) ? null : c.get(columns[i]);
+			if (r == null) {
+				return null;
+			}
+			result[i] = r;
+		}
+		return result;
+	}
+
+	/**
+	 * Rows are copied: callers own the returned arrays, as with features
+	 * computed by features generators, so modification of them cannot corrupt
+	 * the shared matrix. The copy costs the same memory as features computed
+	 * without the matrix, but only for the requested rows.
+	 * 
+	 * @param smiles  SMILES strings
+	 * @param columns columns
+	 * @return rows (copies), null if some entries are absent
+	 */
+	public float[][] rows(String[] smiles, int[] columns) {
+		int[] r = rowIndices(smiles, columns);
+		if (r == null) {
+			return null;
+		}
+		float[][] result = new float[r.length][width];
+		for (int i = 0; i < r.length; i++) {
+			System.arraycopy(data, r[i] * width, result[i], 0, width);
+		}
+		return result;
+	}
+
+	public int size() {
+		return numRows;
+	}
+}
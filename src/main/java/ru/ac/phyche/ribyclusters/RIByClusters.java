@@ -1,12 +1,40 @@
 package ru.ac.phyche.ribyclusters;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.lang3.tuple.Pair;
 
 import ru.ac.phyche.ribyclusters.clusters.Clustering;
 import ru.ac.phyche.ribyclusters.featuregenerators.FeaturesGenerator;
@@ -14,13 +42,30 @@ import ru.ac.phyche.ribyclusters.models.EnsembleRI;
 import ru.ac.phyche.ribyclusters.models.ModelRI;
 import ru.ac.phyche.ribyclusters.models.QSRRModelRI;
 
-public class RIByClusters extends ModelRI {
+public class RIByClusters extends ModelRI implements Closeable {
 
 	private Clustering cl;
 	private FeaturesGenerator genForClusters;
 	private ModelRI[] models;
 	private ModelRI exampleModel;
 	private String outputTrainingDir;
+	private int softRoutingK = 1; // 1 - each compound is predicted by the model of its cluster only
+	private float softRoutingRatio = 1.5f;
+	private static final float softRoutingEps = 1e-6f;
+	private int trainingThreads = 1; // 1 - clusters are trained one after another
+	private int concurrentClusters = 1;
+	private IntFunction<ModelRI> modelLoader = null; // null if all models are in memory
+	private int maxLoadedModels = 0; // 0 - no limit
+	private LinkedHashMap<Integer, Boolean> loadedModels = null; // access order of lazily loaded models
+	private ZipFile bundle = null; // open zip file of the model loaded by loadBundle
+	private boolean checkpointing = false;
+	private int workerProcesses = 0; // 0 - clusters are trained in this JVM
+	private int threadsPerWorker = 1;
+	private boolean overlapDiagnostics = false;
+	private ExecutorService overlapExecutor = null; // asynchronous overlap diagnostics during training
+	private FileWriter overlapLog = null;
+	private String workerHeap = null;
+	private double flopsPerThread = 1E9; // see setFlopsPerThread
 
 	public static RIByClusters getInstance(Clustering cl, FeaturesGenerator genForClusters, ModelRI exampleModel,
 			String outputTrainingDir) {
@@ -34,22 +79,174 @@ public class RIByClusters extends ModelRI {
 
 	@Override
 	public float[] predict(String[] smiles, int[] columns) {
-		genForClusters.precompute(smiles);
-		int[] ns = cl.predict(genForClusters.features(smiles));
+		if (softRoutingK > 1) {
+			return predictSoft(smiles, columns);
+		}
+		int[] ns = cl.predict(smiles, genForClusters);
 		float[] result = new float[smiles.length];
+		int[][] entries = groupByCluster(ns);
+		for (int c = 0; c < models.length; c++) {
+			if (entries[c].length != 0) {
+				float[] p = predictSubset(c, entries[c], smiles, columns);
+				for (int i = 0; i < p.length; i++) {
+					result[entries[c][i]] = p[i];
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 
+	 * @param ns cluster of each compound
+	 * @return numbers of compounds for each cluster
+	 */
+	private int[][] groupByCluster(int[] ns) {
+		int[] counts = new int[models.length];
+		for (int i = 0; i < ns.length; i++) {
+			counts[ns[i]]++;
+		}
+		int[][] result = new int[models.length][];
+		for (int c = 0; c < models.length; c++) {
+			result[c] = new int[counts[c]];
+			counts[c] = 0;
+		}
 		for (int i = 0; i < ns.length; i++) {
-			result[i] = models[ns[i]].predict(smiles[i], columns[i]);
+			result[ns[i]][counts[ns[i]]++] = i;
 		}
 		return result;
 	}
 
+	/**
+	 * One call of the cluster model for all given compounds.
+	 * 
+	 * @param c       cluster
+	 * @param entries numbers of compounds
+	 * @param smiles  all SMILES strings
+	 * @param columns all columns
+	 * @return predictions for given compounds
+	 */
+	private float[] predictSubset(int c, int[] entries, String[] smiles, int[] columns) {
+		String[] s = new String[entries.length];
+		int[] col = new int[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			s[i] = smiles[entries[i]];
+			col[i] = columns[entries[i]];
+		}
+		return model(c).predict(s, col);
+	}
+
+	/**
+	 * Soft routing: compounds near cluster boundaries are predicted by models of
+	 * several nearest clusters, predictions are blended with weights inversely
+	 * proportional to the distance to the cluster centroid. Secondary cluster j is
+	 * used only if d_j <= ratio * d_1, where d_1 is the distance to the assigned
+	 * cluster. Compounds are grouped by cluster, so each model is called once.
+	 * Clustering models without centroids (DBSCAN) always give hard routing.
+	 * 
+	 * @param k     maximal number of clusters for each compound, 1 to disable
+	 * @param ratio distance ratio threshold for secondary clusters (>= 1)
+	 */
+	public void setSoftRouting(int k, float ratio) {
+		if ((k < 1) || (ratio < 1)) {
+			throw new RuntimeException("Wrong soft routing parameters");
+		}
+		this.softRoutingK = k;
+		this.softRoutingRatio = ratio;
+	}
+
+	private float[] predictSoft(String[] smiles, int[] columns) {
+		Pair<int[][], float[][]> nearest = cl.predictNearest(smiles, genForClusters, softRoutingK);
+		int[][] ns = nearest.getLeft();
+		float[][] ds = nearest.getRight();
+		boolean[][] used = new boolean[smiles.length][];
+		int[] counts = new int[models.length];
+		for (int i = 0; i < smiles.length; i++) {
+			used[i] = new boolean[ns[i].length];
+			for (int j = 0; j < ns[i].length; j++) {
+				if ((j == 0) || (ds[i][j] <= softRoutingRatio * ds[i][0])) {
+					used[i][j] = true;
+					counts[ns[i][j]]++;
+				}
+			}
+		}
+		int[][] entries = new int[models.length][];
+		float[][] weights = new float[models.length][];
+		for (int c = 0; c < models.length; c++) {
+			entries[c] = new int[counts[c]];
+			weights[c] = new float[counts[c]];
+			counts[c] = 0;
+		}
+		for (int i = 0; i < smiles.length; i++) {
+			for (int j = 0; j < ns[i].length; j++) {
+				if (used[i][j]) {
+					int c = ns[i][j];
+					entries[c][counts[c]] = i;
+					weights[c][counts[c]] = 1.0f / (ds[i][j] + softRoutingEps);
+					counts[c]++;
+				}
+			}
+		}
+		float[] sum = new float[smiles.length];
+		float[] sumWeights = new float[smiles.length];
+		for (int c = 0; c < models.length; c++) {
+			if (entries[c].length == 0) {
+				continue;
+			}
+			float[] p = predictSubset(c, entries[c], smiles, columns);
+			for (int i = 0; i < p.length; i++) {
+				int e = entries[c][i];
+				sum[e] += weights[c][i] * p[i];
+				sumWeights[e] += weights[c][i];
+			}
+		}
+		for (int i = 0; i < smiles.length; i++) {
+			sum[i] = sum[i] / sumWeights[i];
+		}
+		return sum;
+	}
+
 	@Override
 	public void train(ChemDataset trainSet, ChemDataset validationSet) {
-		cl.train(trainSet.compounds().toArray(new String[trainSet.compounds().size()]), genForClusters);
+		File checkpointDir = (checkpointing && (outputTrainingDir != null)) ? new File(outputTrainingDir, "checkpoint")
+				: null;
+		String dataId = trainSet.size() + " " + validationSet.size() + " "
+				+ Arrays.hashCode(trainSet.allSmiles()) + " " + Arrays.hashCode(trainSet.allRetentions()) + " "
+				+ Arrays.hashCode(validationSet.allSmiles()) + " " + Arrays.hashCode(validationSet.allRetentions());
+		boolean[] completed = null;
+		try {
+			if (checkpointDir != null) {
+				completed = loadCheckpoint(checkpointDir, dataId);
+			}
+			if (completed == null) {
+				cl.train(trainSet.compounds().toArray(new String[trainSet.compounds().size()]), genForClusters);
+				if (checkpointDir != null) {
+					startCheckpoint(checkpointDir, dataId);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException(e.getMessage());
+		}
 		this.models = new ModelRI[cl.getClustersNum()];
+		this.modelLoader = null;
+		this.loadedModels = null;
 		for (int i = 0; i < models.length; i++) {
 			models[i] = exampleModel.createSimilar();
 		}
+		if (completed == null) {
+			completed = new boolean[models.length];
+		}
+		for (int i = 0; i < models.length; i++) {
+			if (completed[i]) {
+				try {
+					models[i].load(new File(checkpointDir, "model_for_cluster_" + i).getAbsolutePath());
+				} catch (IOException e) {
+					e.printStackTrace();
+					throw new RuntimeException(e.getMessage());
+				}
+			}
+		}
 		ChemDataset[] trainSubsets = cl.predictAndSplit(trainSet, genForClusters);
 		ChemDataset[] valSubsets = cl.predictAndSplit(validationSet, genForClusters);
 		FileWriter fw = null;
@@ -70,52 +267,600 @@ public class RIByClusters extends ModelRI {
 					File f4 = new File(f3.getAbsolutePath(), "tuning" + i);
 					models[i].setTuningOutFileOrDir(f4.getAbsolutePath());
 				}
-				fw = new FileWriter(new File(outputTrainingDir, "clusterTrain.txt"));
+				boolean resumed = false;
+				for (int i = 0; i < completed.length; i++) {
+					resumed = resumed || completed[i];
+				}
+				fw = openCsv("clusterTrain.csv", ClusterTrainingMetrics.csvHeader(), resumed);
 			} catch (IOException e) {
 				e.printStackTrace();
 				throw new RuntimeException(e.getMessage());
 			}
 		}
 
+		if (exampleModel instanceof QSRRModelRI) {
+			// features are computed once here instead of separately in each cluster model
+			QSRRModelRI m = (QSRRModelRI) exampleModel;
+			FeatureMatrix shared = new FeatureMatrix(new ChemDataset[] { trainSet, validationSet }, m.getGenCol(),
+					m.getGen());
+			for (int i = 0; i < models.length; i++) {
+				models[i].setSharedFeatures(shared);
+			}
+		}
+		try {
+			trainClusters(trainSubsets, valSubsets, completed, fw, checkpointDir);
+		} finally {
+			for (int i = 0; i < models.length; i++) {
+				models[i].setSharedFeatures(null);
+			}
+			if (fw != null) {
+				try {
+					fw.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+					throw new RuntimeException(e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add new entries without full retraining. New entries are routed to clusters
+	 * with the existing clustering model. Only clusters where the number of new
+	 * training entries exceeds threshold * (previous size of the cluster
+	 * training subset) are retrained (on previous plus new entries), other
+	 * cluster models are left untouched. The clustering model is not changed.
+	 * 
+	 * @param trainSet                previous training set (used for training of
+	 *                                this model)
+	 * @param validationSet           previous validation set
+	 * @param newTrainSet             new training entries
+	 * @param newValidationSet        new validation entries
+	 * @param relativeChangeThreshold e.g. 0.05 - retrain if cluster training
+	 *                                subset grows more than 5%
+	 * @return numbers of retrained clusters
+	 */
+	public int[] update(ChemDataset trainSet, ChemDataset validationSet, ChemDataset newTrainSet,
+			ChemDataset newValidationSet, float relativeChangeThreshold) {
+		ChemDataset[] trainSubsets = cl.predictAndSplit(trainSet, genForClusters);
+		ChemDataset[] valSubsets = cl.predictAndSplit(validationSet, genForClusters);
+		ChemDataset[] newTrainSubsets = cl.predictAndSplit(newTrainSet, genForClusters);
+		ChemDataset[] newValSubsets = cl.predictAndSplit(newValidationSet, genForClusters);
+		boolean[] unchanged = new boolean[models.length];
+		ArrayList<Integer> retrained = new ArrayList<Integer>();
 		for (int i = 0; i < models.length; i++) {
-			models[i].train(trainSubsets[i], valSubsets[i]);
+			unchanged[i] = newTrainSubsets[i].size() <= relativeChangeThreshold * trainSubsets[i].size();
+			if (!unchanged[i]) {
+				retrained.add(i);
+			}
+		}
+		if (modelLoader != null) {
+			// retrained models exist only in memory, so lazy loading is switched off
+			for (int i = 0; i < models.length; i++) {
+				models[i] = model(i);
+			}
+			modelLoader = null;
+			loadedModels = null;
+			try {
+				close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e.getMessage());
+			}
+		}
+		FileWriter fw = null;
+		try {
+			for (int i : retrained) {
+				trainSubsets[i] = ChemDataset.merge(trainSubsets[i], newTrainSubsets[i]);
+				valSubsets[i] = ChemDataset.merge(valSubsets[i], newValSubsets[i]);
+				models[i] = models[i].createSimilar();
+				if (outputTrainingDir != null) {
+					File f1 = new File(outputTrainingDir, "trainingClustered");
+					File f2 = new File(outputTrainingDir, "validationClustered");
+					Files.createDirectories(Paths.get(f1.getAbsolutePath()));
+					Files.createDirectories(Paths.get(f2.getAbsolutePath()));
+					trainSubsets[i].saveToFile((new File(f1.getAbsolutePath(), i + ".ri")).getAbsolutePath());
+					valSubsets[i].saveToFile((new File(f2.getAbsolutePath(), i + ".ri")).getAbsolutePath());
+					File f3 = new File(outputTrainingDir, "modelsTuning");
+					Files.createDirectories(Paths.get(f3.getAbsolutePath()));
+					models[i].setTuningOutFileOrDir(new File(f3.getAbsolutePath(), "tuning" + i).getAbsolutePath());
+				}
+			}
 			if (outputTrainingDir != null) {
+				fw = openCsv("clusterTrain.csv", ClusterTrainingMetrics.csvHeader(), true);
+			}
+			if (models[0] instanceof QSRRModelRI) {
+				((QSRRModelRI) models[0]).getGen().precompute(newTrainSet);
+				((QSRRModelRI) models[0]).getGen().precompute(newValidationSet);
+			}
+			trainClusters(trainSubsets, valSubsets, unchanged, fw, null);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException(e.getMessage());
+		} finally {
+			if (fw != null) {
 				try {
-					fw.write("cluster " + i + " ");
-					fw.write("clusterSize " + trainSubsets[i].size() + " " + valSubsets[i].size() + " ");
-					fw.write(models[i].validate(valSubsets[i], false) + " ");
-					fw.write(models[i].fullModelInfo() + " ");
-					fw.write(trainSubsets[i].countIdenticalByInchi(valSubsets[i]) + " ");
-					fw.write(valSubsets[i].countIdenticalByCanonicalSmiles(trainSubsets[i]) + "\n");
-					fw.flush();
-				} catch (Exception e) {
-					try {
-						fw.close();
-					} catch (IOException e1) {
-						e1.printStackTrace();
-					}
+					fw.close();
+				} catch (IOException e) {
 					e.printStackTrace();
 					throw new RuntimeException(e.getMessage());
 				}
 			}
 		}
-		if (fw != null) {
+		return ArUtls.toIntArray(retrained);
+	}
+
+	/**
+	 * Sequential or parallel (see setTrainingParallelism) training of models for
+	 * clusters that are not completed.
+	 */
+	private void trainClusters(ChemDataset[] trainSubsets, ChemDataset[] valSubsets, boolean[] completed,
+			FileWriter log, File checkpointDir) {
+		if (outputTrainingDir != null) {
+			String estimate = trainingEstimate(trainSubsets, valSubsets, completed);
 			try {
+				FileWriter fw = new FileWriter(new File(outputTrainingDir, "trainingEstimate.txt"));
+				fw.write(estimate);
 				fw.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 				throw new RuntimeException(e.getMessage());
 			}
 		}
+		try {
+			if (overlapDiagnostics && (outputTrainingDir != null)) {
+				boolean append = false;
+				for (int i = 0; i < completed.length; i++) {
+					append = append || completed[i];
+				}
+				overlapLog = openCsv("clusterOverlap.csv", "cluster,identicalByInchi,identicalByCanonicalSmiles",
+						append);
+				overlapExecutor = Executors.newSingleThreadExecutor();
+			}
+			if (workerProcesses > 0) {
+				trainInWorkers(trainSubsets, valSubsets, completed, log, checkpointDir);
+			} else if (trainingThreads <= 1) {
+				for (int i = 0; i < models.length; i++) {
+					if (!completed[i]) {
+						trainCluster(i, trainSubsets[i], valSubsets[i], log, checkpointDir);
+					}
+				}
+			} else {
+				trainParallel(trainSubsets, valSubsets, completed, log, checkpointDir);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException(e.getMessage());
+		} finally {
+			if (overlapExecutor != null) {
+				overlapExecutor.shutdown();
+				try {
+					overlapExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+					overlapLog.close();
+				} catch (InterruptedException | IOException e) {
+					e.printStackTrace();
+					throw new RuntimeException(e.getMessage());
+				} finally {
+					overlapExecutor = null;
+					overlapLog = null;
+				}
+			}
+		}
 	}
 
-	@Override
-	public void save(String directory) throws IOException {
+	/**
+	 * Opens CSV file in outputTrainingDir, header is written to new file.
+	 */
+	private FileWriter openCsv(String name, String header, boolean append) throws IOException {
+		File f = new File(outputTrainingDir, name);
+		boolean writeHeader = !(append && f.exists());
+		FileWriter fw = new FileWriter(f, append);
+		if (writeHeader) {
+			fw.write(header + "\n");
+		}
+		return fw;
+	}
+
+	/**
+	 * If enabled, numbers of validation entries identical (by InChI and by
+	 * canonical SMILES) to training entries of the same cluster are written to
+	 * outputTrainingDir/clusterOverlap.csv. These diagnostics are expensive, they
+	 * are computed in a background thread during training. Disabled by default.
+	 * 
+	 * @param overlapDiagnostics true to enable
+	 */
+	public void setOverlapDiagnostics(boolean overlapDiagnostics) {
+		this.overlapDiagnostics = overlapDiagnostics;
+	}
+
+	/**
+	 * Train models for several clusters concurrently. All training (both
+	 * cluster-level tasks and parallel streams inside models, e.g.
+	 * hyperparameters tuning) is executed in one ForkJoinPool with
+	 * trainingThreads workers: parallel streams started inside a ForkJoinPool
+	 * worker use this pool, not the common one. So nested parallelism never
+	 * exceeds the budget. Native libraries (XGBoost) get
+	 * trainingThreads/concurrentClusters threads per model.
+	 * 
+	 * @param trainingThreads    total number of threads, 1 - sequential training
+	 *                           (default)
+	 * @param concurrentClusters maximal number of clusters trained at the same
+	 *                           time
+	 */
+	public void setTrainingParallelism(int trainingThreads, int concurrentClusters) {
+		if ((trainingThreads < 1) || (concurrentClusters < 1)) {
+			throw new RuntimeException("Wrong training parallelism parameters");
+		}
+		this.trainingThreads = trainingThreads;
+		this.concurrentClusters = Math.min(concurrentClusters, trainingThreads);
+	}
+
+	/**
+	 * Speed of one thread used to convert estimated training costs (see
+	 * ModelRI.estimateTrainingCost) to time in trainingEstimate.txt. The default
+	 * 1E9 operations per second is a conservative sustained rate of one core for
+	 * solver loops of LIBSVM, LIBLINEAR and XGBoost (well below peak because of
+	 * memory access and branches). It can be calibrated by comparing
+	 * trainingEstimate.txt with the training times in clusterTrain.csv. Only the
+	 * report depends on it, the order of training of clusters doesn't.
+	 * 
+	 * @param flopsPerThread operations per second per thread
+	 */
+	public void setFlopsPerThread(double flopsPerThread) {
+		if (flopsPerThread <= 0) {
+			throw new RuntimeException("Wrong speed of thread");
+		}
+		this.flopsPerThread = flopsPerThread;
+	}
+
+	/**
+	 * If enabled (and outputTrainingDir is set), the clustering model and each
+	 * cluster model are saved to outputTrainingDir/checkpoint as soon as they are
+	 * trained. If training is restarted with the same data sets and
+	 * outputTrainingDir, the saved clustering is reused and only clusters without
+	 * saved models are trained.
+	 * 
+	 * @param checkpointing true to enable checkpoints
+	 */
+	public void setCheckpointing(boolean checkpointing) {
+		this.checkpointing = checkpointing;
+	}
+
+	/**
+	 * Starts new checkpoint: the old one is removed, trained clustering model is
+	 * saved.
+	 */
+	private void startCheckpoint(File checkpointDir, String dataId) throws IOException {
+		deleteDirectory(checkpointDir);
+		Files.createDirectories(Paths.get(checkpointDir.getAbsolutePath()));
+		cl.save(new File(checkpointDir, "clustering_model").getAbsolutePath());
+		FileWriter fw = new FileWriter(new File(checkpointDir, "completed.txt"));
+		fw.close();
+		fw = new FileWriter(new File(checkpointDir, "info.txt"));
+		fw.write(cl.getClustersNum() + "\n" + dataId + "\n");
+		fw.close();
+	}
+
+	/**
+	 * Loads clustering model from a checkpoint made for the same data sets.
+	 * 
+	 * @return for each cluster true if the model is already trained, null if
+	 *         there is no suitable checkpoint
+	 */
+	private boolean[] loadCheckpoint(File checkpointDir, String dataId) throws IOException {
+		File info = new File(checkpointDir, "info.txt");
+		if (!info.exists()) {
+			return null;
+		}
+		BufferedReader br = new BufferedReader(new FileReader(info));
+		String n = br.readLine();
+		String id = br.readLine();
+		br.close();
+		if ((n == null) || (id == null) || (!id.trim().equals(dataId))) {
+			return null;
+		}
+		cl.load(new File(checkpointDir, "clustering_model").getAbsolutePath());
+		if (cl.getClustersNum() != Integer.parseInt(n.trim())) {
+			throw new RuntimeException("Wrong number of clusters in checkpoint");
+		}
+		boolean[] result = new boolean[cl.getClustersNum()];
+		br = new BufferedReader(new FileReader(new File(checkpointDir, "completed.txt")));
+		String s = br.readLine();
+		while (s != null) {
+			if (!s.trim().equals("")) {
+				result[Integer.parseInt(s.trim())] = true;
+			}
+			s = br.readLine();
+		}
+		br.close();
+		return result;
+	}
+
+	private double[] trainingCosts(ChemDataset[] trainSubsets, ChemDataset[] valSubsets) {
+		double[] result = new double[models.length];
 		for (int i = 0; i < models.length; i++) {
-			File f = null;
-			f = new File(directory, "model_for_cluster_" + i);
-			models[i].save(f.getAbsolutePath());
+			result[i] = models[i].estimateTrainingCost(trainSubsets[i].size(), valSubsets[i].size());
+		}
+		return result;
+	}
+
+	/**
+	 * 
+	 * @return numbers of clusters sorted by estimated training cost, descending
+	 */
+	private int[] costOrder(ChemDataset[] trainSubsets, ChemDataset[] valSubsets) {
+		double[] costs = trainingCosts(trainSubsets, valSubsets);
+		Integer[] order = new Integer[models.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(costs[b], costs[a]));
+		int[] result = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			result[i] = order[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Report with estimated training time and memory for each cluster, total
+	 * wall time (LPT schedule over concurrently trained clusters) and peak
+	 * memory. Estimates are rough (see ModelRI.estimateTrainingCost).
+	 */
+	private String trainingEstimate(ChemDataset[] trainSubsets, ChemDataset[] valSubsets, boolean[] completed) {
+		boolean parallel = (trainingThreads > 1) || (workerProcesses > 0);
+		int workers = (workerProcesses > 0) ? workerProcesses : (parallel ? concurrentClusters : 1);
+		int threadsPerCluster = (workerProcesses > 0) ? threadsPerWorker
+				: (parallel ? Math.max(1, trainingThreads / concurrentClusters)
+						: Runtime.getRuntime().availableProcessors());
+		double[] costs = trainingCosts(trainSubsets, valSubsets);
+		double[] memory = new double[models.length];
+		double[] load = new double[workers];
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < models.length; i++) {
+			memory[i] = completed[i] ? 0
+					: models[i].estimateTrainingMemory(trainSubsets[i].size(), valSubsets[i].size(),
+							threadsPerCluster);
+			sb.append("cluster " + i + " clusterSize " + trainSubsets[i].size() + " " + valSubsets[i].size());
+			sb.append(completed[i] ? " completed\n"
+					: " time_s " + (float) (costs[i] / (flopsPerThread * threadsPerCluster)) + " memory_MB "
+							+ (float) (memory[i] / 1048576) + "\n");
+		}
+		for (int c : parallel ? costOrder(trainSubsets, valSubsets) : ArUtls.ints(models.length)) {
+			if (!completed[c]) {
+				int w = 0;
+				for (int j = 1; j < workers; j++) {
+					w = (load[j] < load[w]) ? j : w;
+				}
+				load[w] += costs[c] / (flopsPerThread * threadsPerCluster);
+			}
+		}
+		double[] sortedMemory = memory.clone();
+		Arrays.sort(sortedMemory);
+		double peakMemory = 0;
+		for (int i = 0; i < Math.min(workers, sortedMemory.length); i++) {
+			peakMemory += sortedMemory[sortedMemory.length - 1 - i];
+		}
+		double wallTime = 0;
+		for (int w = 0; w < workers; w++) {
+			wallTime = Math.max(wallTime, load[w]);
+		}
+		sb.append("Estimated wall time, s: " + (float) wallTime + " peak memory, MB: "
+				+ (float) (peakMemory / 1048576) + " concurrent clusters: " + workers + " threads per cluster: "
+				+ threadsPerCluster + "\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Coordinator/worker mode: each cluster model is trained in a separate local
+	 * JVM process (ClusterWorker), at most workerProcesses processes at the same
+	 * time, the most expensive clusters first. Each worker gets the cluster
+	 * subsets, precomputed features and the untrained model (from createSimilar);
+	 * the trained model is read back. So heavy models (LIBSVM kernel cache) don't
+	 * share one heap. Only QSRRModelRI models are supported.
+	 * 
+	 * @param workerProcesses  number of worker processes, 0 - train in this JVM
+	 *                         (default)
+	 * @param threadsPerWorker threads for each worker (common ForkJoinPool
+	 *                         parallelism and native threads)
+	 * @param workerHeap       maximal heap of each worker, e.g. "8g", null - JVM
+	 *                         default
+	 */
+	public void setWorkerProcesses(int workerProcesses, int threadsPerWorker, String workerHeap) {
+		if ((workerProcesses < 0) || (threadsPerWorker < 1)) {
+			throw new RuntimeException("Wrong worker processes parameters");
+		}
+		this.workerProcesses = workerProcesses;
+		this.threadsPerWorker = threadsPerWorker;
+		this.workerHeap = workerHeap;
+	}
+
+	private void trainInWorkers(ChemDataset[] trainSubsets, ChemDataset[] valSubsets, boolean[] completed,
+			FileWriter log, File checkpointDir) {
+		for (int i = 0; i < models.length; i++) {
+			if (!(models[i] instanceof QSRRModelRI)) {
+				throw new RuntimeException("Only QSRRModelRI models can be trained in worker processes");
+			}
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(workerProcesses);
+		try {
+			ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+			for (int c : costOrder(trainSubsets, valSubsets)) {
+				if (completed[c]) {
+					continue;
+				}
+				tasks.add(executor.submit(() -> {
+					ClusterTrainingMetrics m = trainInWorker(c, trainSubsets[c], valSubsets[c]);
+					clusterTrained(c, trainSubsets[c], valSubsets[c], m, log, checkpointDir);
+					return null;
+				}));
+			}
+			for (Future<?> t : tasks) {
+				t.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			throw new RuntimeException(e.getMessage());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private ClusterTrainingMetrics trainInWorker(int c, ChemDataset trainSubset, ChemDataset valSubset)
+			throws IOException, InterruptedException {
+		Path task = Files.createTempDirectory("RIByClustersTask" + c + "_");
+		try {
+			models[c].setNativeThreads(threadsPerWorker);
+			ClusterWorker.writeTask(task.toFile(), (QSRRModelRI) models[c], trainSubset, valSubset);
+			ArrayList<String> command = new ArrayList<String>();
+			command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+			if (workerHeap != null) {
+				command.add("-Xmx" + workerHeap);
+			}
+			command.add("-Djava.util.concurrent.ForkJoinPool.common.parallelism=" + threadsPerWorker);
+			command.add("-cp");
+			String classPath = "";
+			for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+				classPath = classPath + (classPath.equals("") ? "" : File.pathSeparator)
+						+ new File(entry).getAbsolutePath();
+			}
+			command.add(classPath);
+			command.add(ClusterWorker.class.getName());
+			command.add(task.toFile().getAbsolutePath());
+			File workerLog = new File(task.toFile(), "log.txt");
+			if (outputTrainingDir != null) {
+				File f = new File(outputTrainingDir, "workers");
+				Files.createDirectories(Paths.get(f.getAbsolutePath()));
+				workerLog = new File(f, "cluster" + c + ".txt");
+			}
+			// task directory is the working directory, so temporary files of workers don't clash
+			Process p = new ProcessBuilder(command).directory(task.toFile()).redirectErrorStream(true)
+					.redirectOutput(workerLog).start();
+			int exitCode = p.waitFor();
+			if (exitCode != 0) {
+				throw new RuntimeException(
+						"Worker process for cluster " + c + " failed with exit code " + exitCode + ", see " + workerLog);
+			}
+			models[c].load(new File(task.toFile(), "model").getAbsolutePath());
+			return ClusterWorker.readMetrics(task.toFile(), c, trainSubset, valSubset);
+		} finally {
+			deleteDirectory(task.toFile());
+		}
+	}
+
+	private void trainParallel(ChemDataset[] trainSubsets, ChemDataset[] valSubsets, boolean[] completed,
+			FileWriter log, File checkpointDir) {
+		ForkJoinPool pool = new ForkJoinPool(trainingThreads);
+		ExecutorService clusterExecutor = Executors.newFixedThreadPool(concurrentClusters);
+		try {
+			ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+			for (int c : costOrder(trainSubsets, valSubsets)) { // LPT: the most expensive clusters first
+				if (completed[c]) {
+					continue;
+				}
+				models[c].setNativeThreads(Math.max(1, trainingThreads / concurrentClusters));
+				tasks.add(clusterExecutor.submit(() -> {
+					pool.submit(() -> trainCluster(c, trainSubsets[c], valSubsets[c], log, checkpointDir)).get();
+					return null;
+				}));
+			}
+			for (Future<?> t : tasks) {
+				t.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			throw new RuntimeException(e.getMessage());
+		} finally {
+			clusterExecutor.shutdownNow();
+			pool.shutdownNow();
+		}
+	}
+
+	private void trainCluster(int i, ChemDataset trainSubset, ChemDataset valSubset, FileWriter fw,
+			File checkpointDir) {
+		ClusterTrainingMetrics m = new ClusterTrainingMetrics(i, trainSubset.size(), valSubset.size());
+		if (trainingThreads <= 1) {
+			ClusterTrainingMetrics.resetPeakHeap();
+		}
+		long featuresTime = models[i].featuresTimeNanos();
+		long t = System.nanoTime();
+		models[i].train(trainSubset, valSubset);
+		m.trainNanos = System.nanoTime() - t;
+		m.featuresNanos = models[i].featuresTimeNanos() - featuresTime;
+		m.peakHeapBytes = ClusterTrainingMetrics.peakHeap();
+		clusterTrained(i, trainSubset, valSubset, m, fw, checkpointDir);
+	}
+
+	/**
+	 * Checkpoint, metrics record and (asynchronous) overlap diagnostics for
+	 * trained model.
+	 */
+	private void clusterTrained(int i, ChemDataset trainSubset, ChemDataset valSubset, ClusterTrainingMetrics m,
+			FileWriter fw, File checkpointDir) {
+		long t = System.nanoTime();
+		if (checkpointDir != null) {
+			try {
+				File f = new File(checkpointDir, "model_for_cluster_" + i);
+				Files.createDirectories(Paths.get(f.getAbsolutePath()));
+				models[i].save(f.getAbsolutePath());
+				synchronized (this) {
+					FileWriter completed = new FileWriter(new File(checkpointDir, "completed.txt"), true);
+					completed.write(i + "\n");
+					completed.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e.getMessage());
+			}
 		}
+		m.checkpointNanos = System.nanoTime() - t;
+		if (fw != null) {
+			try {
+				t = System.nanoTime();
+				m.validation = models[i].validate(valSubset, false);
+				m.validationNanos = System.nanoTime() - t;
+				m.tuningTrials = models[i].numFits();
+				m.modelInfo = models[i].fullModelInfo();
+				String s = m.toCsv() + "\n";
+				synchronized (fw) {
+					fw.write(s);
+					fw.flush();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new RuntimeException(e.getMessage());
+			}
+		}
+		if (overlapExecutor != null) {
+			FileWriter overlap = overlapLog;
+			overlapExecutor.submit(() -> {
+				try {
+					String s = i + "," + trainSubset.countIdenticalByInchi(valSubset) + ","
+							+ valSubset.countIdenticalByCanonicalSmiles(trainSubset) + "\n";
+					synchronized (overlap) {
+						overlap.write(s);
+						overlap.flush();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+		}
+	}
+
+	@Override
+	public void save(String directory) throws IOException {
+		Files.createDirectories(Paths.get(directory));
+		// models for clusters are independent and are saved in parallel
+		IntStream.range(0, models.length).parallel().forEach(i -> {
+			File f = new File(directory, "model_for_cluster_" + i);
+			try {
+				model(i).save(f.getAbsolutePath());
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e.getMessage());
+			}
+		});
 		FileWriter fw = new FileWriter(new File(directory, "ModelType.txt"));
 		fw.write(this.modelType());
 		fw.close();
@@ -128,6 +873,259 @@ public class RIByClusters extends ModelRI {
 		cl.save(new File(directory, "clustering_model").getAbsolutePath());
 	}
 
+	/**
+	 * Save the model as a single zip file. The file contains the same files as
+	 * the directory written by save. Models for clusters are serialized in
+	 * parallel, in batches of availableProcessors() models: each of them is
+	 * written to a temporary directory, read to memory and the directory is
+	 * deleted. Then the batch is written to the zip file in the order of
+	 * clusters, so only one batch is in memory at once and the zip file does not
+	 * depend on the number of threads. The list of files of each directory (e.g.
+	 * model_for_cluster_0.files) allows to read models for separate clusters (see
+	 * loadBundle).
+	 * 
+	 * @param fileName zip file
+	 * @throws IOException io exception
+	 */
+	public void saveBundle(String fileName) throws IOException {
+		try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+			writeEntry(zip, "ModelType.txt", this.modelType());
+			writeEntry(zip, "info.txt", models.length + "");
+			writeEntry(zip, "info1.txt", this.fullModelInfo());
+			int batch = Runtime.getRuntime().availableProcessors();
+			for (int start = 0; start < models.length; start += batch) {
+				int first = start;
+				List<List<Pair<String, byte[]>>> serialized = IntStream
+						.range(first, Math.min(first + batch, models.length)).parallel().mapToObj(i -> {
+							try {
+								Path tmp = Files.createTempDirectory("RIByClusters");
+								try {
+									File f = new File(tmp.toFile(), "model");
+									model(i).save(f.getAbsolutePath());
+									return readDirectory(f.toPath());
+								} finally {
+									deleteDirectory(tmp.toFile());
+								}
+							} catch (IOException e) {
+								e.printStackTrace();
+								throw new RuntimeException(e.getMessage());
+							}
+						}).collect(Collectors.toList());
+				for (int i = 0; i < serialized.size(); i++) {
+					zipDirectory(zip, serialized.get(i), "model_for_cluster_" + (first + i));
+				}
+			}
+			Path tmp = Files.createTempDirectory("RIByClusters");
+			try {
+				File f = new File(tmp.toFile(), "clustering_model");
+				cl.save(f.getAbsolutePath());
+				zipDirectory(zip, readDirectory(f.toPath()), "clustering_model");
+			} finally {
+				deleteDirectory(tmp.toFile());
+			}
+		}
+	}
+
+	private static void writeEntry(ZipOutputStream zip, String name, String content) throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+		zip.write(content.getBytes(StandardCharsets.UTF_8));
+		zip.closeEntry();
+	}
+
+	/**
+	 * 
+	 * @param directory directory
+	 * @return files of the directory (relative path with '/' separators,
+	 *         content) sorted by path
+	 */
+	private static List<Pair<String, byte[]>> readDirectory(Path directory) throws IOException {
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(directory)) {
+			files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		List<Pair<String, byte[]>> result = new ArrayList<Pair<String, byte[]>>();
+		for (Path p : files) {
+			String relative = directory.relativize(p).toString().replace(File.separatorChar, '/');
+			result.add(Pair.of(relative, Files.readAllBytes(p)));
+		}
+		return result;
+	}
+
+	/**
+	 * Write files (see readDirectory) to zip entries name/..., the list of files
+	 * is written to the entry name.files
+	 * 
+	 * @param zip   zip file
+	 * @param files files of the directory
+	 * @param name  directory in zip file
+	 */
+	private static void zipDirectory(ZipOutputStream zip, List<Pair<String, byte[]>> files, String name)
+			throws IOException {
+		StringBuilder list = new StringBuilder();
+		for (Pair<String, byte[]> file : files) {
+			zip.putNextEntry(new ZipEntry(name + "/" + file.getLeft()));
+			zip.write(file.getRight());
+			zip.closeEntry();
+			list.append(file.getLeft()).append("\n");
+		}
+		writeEntry(zip, name + ".files", list.toString());
+	}
+
+	/**
+	 * Load the model from a zip file written by saveBundle. Models for clusters
+	 * are read from the zip file lazily, see loadLazy. The zip file is kept open
+	 * until the model is closed.
+	 * 
+	 * @param fileName        zip file
+	 * @param genForClusters  features generator for clustering
+	 * @param genForModels    features generator for models
+	 * @param forModels       column features for models
+	 * @param maxLoadedModels maximal number of models in memory, 0 - no limit
+	 * @return model
+	 * @throws IOException io exception
+	 */
+	public static RIByClusters loadBundle(String fileName, FeaturesGenerator genForClusters,
+			FeaturesGenerator genForModels, ColumnFeatures forModels, int maxLoadedModels) throws IOException {
+		RIByClusters result = loadBundle(fileName, genForClusters, maxLoadedModels);
+		ZipFile zip = result.bundle;
+		result.modelLoader = i -> {
+			try {
+				Path tmp = extract(zip, "model_for_cluster_" + i);
+				try {
+					return QSRRModelRI.loadModel(tmp.toFile().getAbsolutePath(), forModels, genForModels);
+				} finally {
+					deleteDirectory(tmp.toFile());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e.getMessage());
+			}
+		};
+		return result;
+	}
+
+	/**
+	 * Same as loadBundle for models for clusters saved by EnsembleRI.
+	 * 
+	 * @param fileName        zip file
+	 * @param genForClusters  features generator for clustering
+	 * @param genForModels    features generators for models
+	 * @param forModels       column features for models
+	 * @param maxLoadedModels maximal number of models in memory, 0 - no limit
+	 * @return model
+	 * @throws IOException io exception
+	 */
+	public static RIByClusters loadEnsemblesBundle(String fileName, FeaturesGenerator genForClusters,
+			FeaturesGenerator[] genForModels, ColumnFeatures[] forModels, int maxLoadedModels) throws IOException {
+		RIByClusters result = loadBundle(fileName, genForClusters, maxLoadedModels);
+		ZipFile zip = result.bundle;
+		result.modelLoader = i -> {
+			try {
+				Path tmp = extract(zip, "model_for_cluster_" + i);
+				try {
+					ModelRI m = new EnsembleRI(forModels, genForModels);
+					m.load(tmp.toFile().getAbsolutePath());
+					return m;
+				} finally {
+					deleteDirectory(tmp.toFile());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e.getMessage());
+			}
+		};
+		return result;
+	}
+
+	private static RIByClusters loadBundle(String fileName, FeaturesGenerator genForClusters, int maxLoadedModels)
+			throws IOException {
+		ZipFile zip = new ZipFile(fileName);
+		Path tmp = null;
+		try {
+			tmp = Files.createTempDirectory("RIByClusters");
+			for (String name : new String[] { "ModelType.txt", "info.txt" }) {
+				try (InputStream in = zip.getInputStream(entry(zip, name))) {
+					Files.copy(in, tmp.resolve(name));
+				}
+			}
+			Path cl = extract(zip, "clustering_model");
+			Files.move(cl, tmp.resolve("clustering_model"));
+			RIByClusters result = loadLazy(tmp.toFile().getAbsolutePath(), genForClusters, maxLoadedModels);
+			result.bundle = zip;
+			return result;
+		} catch (IOException | RuntimeException e) {
+			zip.close();
+			throw e;
+		} finally {
+			if (tmp != null) {
+				deleteDirectory(tmp.toFile());
+			}
+		}
+	}
+
+	private static ZipEntry entry(ZipFile zip, String name) throws IOException {
+		ZipEntry e = zip.getEntry(name);
+		if (e == null) {
+			throw new IOException("Entry " + name + " not found in " + zip.getName());
+		}
+		return e;
+	}
+
+	/**
+	 * 
+	 * @param zip  zip file
+	 * @param name directory in zip file, e.g. "model_for_cluster_0"
+	 * @return temporary directory with extracted files
+	 */
+	private static Path extract(ZipFile zip, String name) throws IOException {
+		String[] files;
+		try (InputStream in = zip.getInputStream(entry(zip, name + ".files"))) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				bytes.write(buffer, 0, n);
+			}
+			files = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+		}
+		Path tmp = Files.createTempDirectory("RIByClusters");
+		for (String f : files) {
+			if (f.isEmpty()) {
+				continue;
+			}
+			Path p = tmp.resolve(f).normalize();
+			if (!p.startsWith(tmp)) {
+				throw new IOException("Wrong entry name " + f);
+			}
+			Files.createDirectories(p.getParent());
+			try (InputStream in = zip.getInputStream(entry(zip, name + "/" + f))) {
+				Files.copy(in, p);
+			}
+		}
+		return tmp;
+	}
+
+	private static void deleteDirectory(File directory) throws IOException {
+		if (directory.exists()) {
+			try (Stream<Path> walk = Files.walk(directory.toPath())) {
+				walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+	}
+
+	/**
+	 * Close the zip file of the model loaded by loadBundle (no-op for other
+	 * models). Models for clusters that are not in memory can't be read after
+	 * that.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (bundle != null) {
+			bundle.close();
+			bundle = null;
+		}
+	}
+
 	@Override
 	public void load(String directory) throws IOException {
 		cl.load(new File(directory, "clustering_model").getAbsolutePath());
@@ -226,6 +1224,145 @@ public class RIByClusters extends ModelRI {
 		return result;
 	}
 
+	/**
+	 * Same as load, but models for clusters are read from disk on first use. If
+	 * maxLoadedModels is positive, at most maxLoadedModels models are kept in
+	 * memory, least recently used models are evicted (and read again when
+	 * needed).
+	 * 
+	 * @param directory       directory with saved model
+	 * @param genForClusters  features generator for clustering
+	 * @param genForModels    features generator for models
+	 * @param forModels       column features for models
+	 * @param maxLoadedModels maximal number of models in memory, 0 - no limit
+	 * @return model
+	 * @throws IOException io exception
+	 */
+	public static RIByClusters loadLazy(String directory, FeaturesGenerator genForClusters,
+			FeaturesGenerator genForModels, ColumnFeatures forModels, int maxLoadedModels) throws IOException {
+		RIByClusters result = loadLazy(directory, genForClusters, maxLoadedModels);
+		result.modelLoader = i -> {
+			try {
+				File f = new File(directory, "model_for_cluster_" + i);
+				return QSRRModelRI.loadModel(f.getAbsolutePath(), forModels, genForModels);
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e.getMessage());
+			}
+		};
+		return result;
+	}
+
+	/**
+	 * Same as loadEnsembles, but models for clusters are read from disk on first
+	 * use. See loadLazy.
+	 * 
+	 * @param directory       directory with saved model
+	 * @param genForClusters  features generator for clustering
+	 * @param genForModels    features generators for models
+	 * @param forModels       column features for models
+	 * @param maxLoadedModels maximal number of models in memory, 0 - no limit
+	 * @return model
+	 * @throws IOException io exception
+	 */
+	public static RIByClusters loadEnsemblesLazy(String directory, FeaturesGenerator genForClusters,
+			FeaturesGenerator[] genForModels, ColumnFeatures[] forModels, int maxLoadedModels) throws IOException {
+		RIByClusters result = loadLazy(directory, genForClusters, maxLoadedModels);
+		result.modelLoader = i -> {
+			try {
+				File f = new File(directory, "model_for_cluster_" + i);
+				ModelRI m = new EnsembleRI(forModels, genForModels);
+				m.load(f.getAbsolutePath());
+				return m;
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e.getMessage());
+			}
+		};
+		return result;
+	}
+
+	private static RIByClusters loadLazy(String directory, FeaturesGenerator genForClusters, int maxLoadedModels)
+			throws IOException {
+		if (maxLoadedModels < 0) {
+			throw new RuntimeException("Wrong maximal number of loaded models");
+		}
+		RIByClusters result = new RIByClusters();
+		result.cl = Clustering.loadModel(new File(directory, "clustering_model").getAbsolutePath());
+		BufferedReader br = new BufferedReader(new FileReader(new File(directory, "ModelType.txt")));
+		String s = br.readLine();
+		while (s.trim().equals("")) {
+			s = br.readLine();
+		}
+		br.close();
+		if (!s.trim().equals(result.modelType())) {
+			throw new RuntimeException("Wrong model type");
+		}
+		br = new BufferedReader(new FileReader(new File(directory, "info.txt")));
+		s = br.readLine();
+		while (s.trim().equals("")) {
+			s = br.readLine();
+		}
+		br.close();
+		int n = Integer.parseInt(s);
+		if (n != result.cl.getClustersNum()) {
+			throw new RuntimeException("Wrong number of models and/or clusters");
+		}
+		result.models = new ModelRI[n];
+		result.maxLoadedModels = maxLoadedModels;
+		result.loadedModels = new LinkedHashMap<Integer, Boolean>(16, 0.75f, true);
+		result.genForClusters = genForClusters;
+		return result;
+	}
+
+	/**
+	 * Model for the cluster. Lazily loaded models are read here if needed.
+	 * 
+	 * @param c cluster
+	 * @return model
+	 */
+	private ModelRI model(int c) {
+		if (modelLoader == null) {
+			return models[c];
+		}
+		synchronized (loadedModels) {
+			ModelRI m = models[c];
+			if (m == null) {
+				m = modelLoader.apply(c);
+				models[c] = m;
+			}
+			loadedModels.put(c, true);
+			if ((maxLoadedModels > 0) && (loadedModels.size() > maxLoadedModels)) {
+				Iterator<Integer> it = loadedModels.keySet().iterator();
+				int evicted = it.next();
+				it.remove();
+				models[evicted] = null;
+			}
+			return m;
+		}
+	}
+
+	/**
+	 * Memoize cluster assignments of compounds (SMILES strings). Useful when the
+	 * same compounds are predicted many times (e.g. for different columns).
+	 * 
+	 * @param enabled true to enable cache
+	 */
+	public void setClusterAssignmentCache(boolean enabled) {
+		cl.setAssignmentCache(enabled);
+	}
+
+	/**
+	 * The same as setClusterAssignmentCache(boolean) with the given size of the
+	 * cache (least recently used compounds are evicted).
+	 * 
+	 * @param enabled true to enable cache
+	 * @param maxSize maximum number of cached compounds
+	 */
+	public void setClusterAssignmentCache(boolean enabled, int maxSize) {
+		cl.setAssignmentCache(enabled, maxSize);
+	}
+
 	@Override
 	public String modelType() {
 		return "RIByClusters";
@@ -236,7 +1373,7 @@ public class RIByClusters extends ModelRI {
 		String s = modelType() + " clusters_num: ";
 		s = s + cl.getClustersNum() + " " + cl.modelType() + " ";
 		for (int i = 0; i < cl.getClustersNum(); i++) {
-			s = s + "model " + i + " " + models[i].fullModelInfo() + " ";
+			s = s + "model " + i + " " + model(i).fullModelInfo() + " ";
 		}
 		return s;
 	}
@@ -247,7 +1384,7 @@ public class RIByClusters extends ModelRI {
 
 	@Override
 	public ModelRI createSimilar() {
-		return RIByClusters.getInstance(cl, genForClusters, models[0], outputTrainingDir);
+		return RIByClusters.getInstance(cl, genForClusters, model(0), outputTrainingDir);
 	}
 
 	@Override
@@ -0,0 +1,200 @@
+package ru.ac.phyche.ribyclusters.clusters;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import smile.clustering.KMeans;
+import smile.math.matrix.Matrix;
+import smile.projection.PCA;
+
+/**
+ * Compact binary format of clustering models (file model.bin). Only data
+ * required for prediction are stored: centroids, PCA loadings (first nPCA
+ * components only) and mean, tree topology. The whole file is read with a
+ * single read and parsed into primitive arrays.
+ */
+class BinaryModelFormat {
+	static final String FILE_NAME = "model.bin";
+	private static final int MAGIC = 0x52494243; // "RIBC"
+	private static final int VERSION = 2; // 2: KMeansIterative nodes are followed by their biases
+
+	static boolean exists(String directoryName) {
+		return new File(directoryName, FILE_NAME).exists();
+	}
+
+	static DataOutputStream create(String directoryName, String modelType) throws IOException {
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(new File(directoryName, FILE_NAME)), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(modelType);
+		return out;
+	}
+
+	static DataInputStream open(String directoryName, String modelType) throws IOException {
+		byte[] bytes = Files.readAllBytes(new File(directoryName, FILE_NAME).toPath());
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		if (in.readInt() != MAGIC) {
+			throw new RuntimeException("Wrong format of binary clustering model");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new RuntimeException("Unsupported version of binary clustering model: " + version);
+		}
+		if (!in.readUTF().equals(modelType)) {
+			throw new RuntimeException("Wrong model type");
+		}
+		return in;
+	}
+
+	static void writeArray(DataOutputStream out, double[] a) throws IOException {
+		out.writeInt(a.length);
+		for (int i = 0; i < a.length; i++) {
+			out.writeDouble(a[i]);
+		}
+	}
+
+	static double[] readDoubleArray(DataInputStream in) throws IOException {
+		double[] a = new double[in.readInt()];
+		for (int i = 0; i < a.length; i++) {
+			a[i] = in.readDouble();
+		}
+		return a;
+	}
+
+	static void writeArray(DataOutputStream out, int[] a) throws IOException {
+		out.writeInt(a.length);
+		for (int i = 0; i < a.length; i++) {
+			out.writeInt(a[i]);
+		}
+	}
+
+	static int[] readIntArray(DataInputStream in) throws IOException {
+		int[] a = new int[in.readInt()];
+		for (int i = 0; i < a.length; i++) {
+			a[i] = in.readInt();
+		}
+		return a;
+	}
+
+	/**
+	 * Rectangular matrix: number of rows, number of columns, row-major values.
+	 */
+	static void writeMatrix(DataOutputStream out, double[][] m) throws IOException {
+		out.writeInt(m.length);
+		out.writeInt(m.length == 0 ? 0 : m[0].length);
+		for (int i = 0; i < m.length; i++) {
+			for (int j = 0; j < m[i].length; j++) {
+				out.writeDouble(m[i][j]);
+			}
+		}
+	}
+
+	static double[][] readMatrix(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		int m = in.readInt();
+		double[][] result = new double[n][m];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < m; j++) {
+				result[i][j] = in.readDouble();
+			}
+		}
+		return result;
+	}
+
+	static void writeKMeans(DataOutputStream out, KMeans km) throws IOException {
+		out.writeDouble(km.distortion);
+		writeMatrix(out, km.centroids);
+	}
+
+	static KMeans readKMeans(DataInputStream in) throws IOException {
+		double distortion = in.readDouble();
+		double[][] centroids = readMatrix(in);
+		return new KMeans(distortion, centroids, new int[0]);
+	}
+
+	/**
+	 * Only first nPCA principal components are stored.
+	 */
+	static void writePCA(DataOutputStream out, PCA pca, int nPCA) throws IOException {
+		double[] mu = pca.getCenter();
+		double[] variance = pca.getVariance();
+		Matrix loadings = pca.getLoadings();
+		writeArray(out, mu);
+		out.writeInt(nPCA);
+		for (int j = 0; j < nPCA; j++) {
+			out.writeDouble(variance[j]);
+		}
+		for (int i = 0; i < mu.length; i++) {
+			for (int j = 0; j < nPCA; j++) {
+				out.writeDouble(loadings.get(i, j));
+			}
+		}
+	}
+
+	static PCA readPCA(DataInputStream in) throws IOException {
+		double[] mu = readDoubleArray(in);
+		int nPCA = in.readInt();
+		double[] variance = new double[nPCA];
+		for (int j = 0; j < nPCA; j++) {
+			variance[j] = in.readDouble();
+		}
+		double[][] loadings = new double[mu.length][nPCA];
+		for (int i = 0; i < mu.length; i++) {
+			for (int j = 0; j < nPCA; j++) {
+				loadings[i][j] = in.readDouble();
+			}
+		}
+		PCA pca = new PCA(mu, variance, new Matrix(loadings));
+		pca.setProjection(nPCA);
+		return pca;
+	}
+
+	static void writeTrees(DataOutputStream out, RandomProjectionForest.Tree[] trees) throws IOException {
+		out.writeInt(trees.length);
+		for (RandomProjectionForest.Tree t : trees) {
+			writeArray(out, t.a);
+			writeArray(out, t.b);
+			writeArray(out, t.threshold);
+			writeArray(out, t.left);
+			writeArray(out, t.right);
+			for (int i = 0; i < t.items.length; i++) {
+				if (t.items[i] == null) {
+					out.writeInt(-1);
+				} else {
+					writeArray(out, t.items[i]);
+				}
+			}
+		}
+	}
+
+	static RandomProjectionForest.Tree[] readTrees(DataInputStream in) throws IOException {
+		RandomProjectionForest.Tree[] trees = new RandomProjectionForest.Tree[in.readInt()];
+		for (int k = 0; k < trees.length; k++) {
+			RandomProjectionForest.Tree t = new RandomProjectionForest.Tree();
+			t.a = readIntArray(in);
+			t.b = readIntArray(in);
+			t.threshold = readDoubleArray(in);
+			t.left = readIntArray(in);
+			t.right = readIntArray(in);
+			t.items = new int[t.a.length][];
+			for (int i = 0; i < t.items.length; i++) {
+				int n = in.readInt();
+				if (n != -1) {
+					t.items[i] = new int[n];
+					for (int j = 0; j < n; j++) {
+						t.items[i][j] = in.readInt();
+					}
+				}
+			}
+			trees[k] = t;
+		}
+		return trees;
+	}
+}
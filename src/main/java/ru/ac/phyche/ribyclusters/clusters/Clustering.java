@@ -5,7 +5,14 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 
+import org.apache.commons.lang3.tuple.Pair;
+
+import ru.ac.phyche.ribyclusters.ArUtls;
 import ru.ac.phyche.ribyclusters.ChemDataset;
 import ru.ac.phyche.ribyclusters.DatasetEntry;
 import ru.ac.phyche.ribyclusters.featuregenerators.FeaturesGenerator;
@@ -13,6 +20,40 @@ import ru.ac.phyche.ribyclusters.featuregenerators.FeaturesGenerator;
 public abstract class Clustering {
 
 	private int clustersNum = 10;
+	private volatile AssignmentCache assignmentCache = null; // null if cache is disabled
+	public static final int defaultAssignmentCacheSize = 100000;
+
+	/**
+	 * Cached assignments computed with one features generator. It is replaced
+	 * (not cleared) when the generator changes, so a concurrent predict that
+	 * still holds the old one never mixes assignments of different generators.
+	 * At most maxSize assignments are kept, least recently used are evicted.
+	 */
+	private static class AssignmentCache {
+		final FeaturesGenerator gen;
+		final int maxSize;
+		// access order (LRU first), guarded by this
+		private final LinkedHashMap<String, Integer> assignments = new LinkedHashMap<String, Integer>(16, 0.75f,
+				true);
+
+		AssignmentCache(FeaturesGenerator gen, int maxSize) {
+			this.gen = gen;
+			this.maxSize = maxSize;
+		}
+
+		synchronized Integer get(String smiles) {
+			return assignments.get(smiles);
+		}
+
+		synchronized void put(String smiles, int cluster) {
+			assignments.put(smiles, cluster);
+			if (assignments.size() > maxSize) {
+				Iterator<String> it = assignments.keySet().iterator();
+				it.next();
+				it.remove();
+			}
+		}
+	}
 
 	public abstract int[] train(float[][] features);
 
@@ -30,17 +71,169 @@ public abstract class Clustering {
 
 	public abstract String paramsNames();
 
+	/**
+	 * Enable or disable memoization of cluster assignments (SMILES string to
+	 * cluster number) in predict methods that take SMILES strings or data sets.
+	 * Repeated compounds skip feature computation, projection and tree traversal.
+	 * The cache is cleared when the model is trained or loaded, and when another
+	 * features generator is used. At most defaultAssignmentCacheSize compounds
+	 * are cached.
+	 * 
+	 * @param enabled true to enable cache
+	 */
+	public void setAssignmentCache(boolean enabled) {
+		setAssignmentCache(enabled, defaultAssignmentCacheSize);
+	}
+
+	/**
+	 * The same as setAssignmentCache(boolean) with the given size of the cache.
+	 * Least recently used assignments are evicted when the cache is full.
+	 * 
+	 * @param enabled true to enable cache
+	 * @param maxSize maximum number of cached compounds
+	 */
+	public synchronized void setAssignmentCache(boolean enabled, int maxSize) {
+		if (maxSize <= 0) {
+			throw new RuntimeException("Size of assignment cache should be positive");
+		}
+		if (enabled) {
+			if ((assignmentCache == null) || (assignmentCache.maxSize != maxSize)) {
+				assignmentCache = new AssignmentCache(null, maxSize);
+			}
+		} else {
+			assignmentCache = null;
+		}
+	}
+
+	public boolean isAssignmentCache() {
+		return assignmentCache != null;
+	}
+
+	/**
+	 * Subclasses should call it when the clustering model is changed (train, load)
+	 */
+	protected synchronized void invalidateAssignmentCache() {
+		if (assignmentCache != null) {
+			assignmentCache = new AssignmentCache(assignmentCache.gen, assignmentCache.maxSize);
+		}
+	}
+
+	private synchronized AssignmentCache assignmentCache(FeaturesGenerator g) {
+		if ((assignmentCache != null) && (assignmentCache.gen != g)) {
+			assignmentCache = new AssignmentCache(g, assignmentCache.maxSize);
+		}
+		return assignmentCache;
+	}
+
 	public int[] predict(String[] smiles, FeaturesGenerator g) {
+		AssignmentCache holder = assignmentCache;
+		if ((holder != null) && (holder.gen != g)) {
+			holder = assignmentCache(g);
+		}
+		if (holder == null) {
+			g.precompute(smiles);
+			float[][] f = g.features(smiles);
+			int[] c = this.predict(f);
+			return c;
+		}
+		int[] c = new int[smiles.length];
+		boolean[] found = new boolean[smiles.length];
+		LinkedHashSet<String> missing = new LinkedHashSet<String>();
+		for (int i = 0; i < smiles.length; i++) {
+			Integer x = holder.get(smiles[i]);
+			if (x != null) {
+				c[i] = x;
+				found[i] = true;
+			} else {
+				missing.add(smiles[i]);
+			}
+		}
+		if (!missing.isEmpty()) {
+			String[] m = missing.toArray(new String[missing.size()]);
+			g.precompute(m);
+			int[] cm = this.predict(g.features(m));
+			HashMap<String, Integer> computed = new HashMap<String, Integer>();
+			for (int i = 0; i < m.length; i++) {
+				computed.put(m[i], cm[i]);
+				holder.put(m[i], cm[i]);
+			}
+			for (int i = 0; i < smiles.length; i++) {
+				if (!found[i]) {
+					c[i] = computed.get(smiles[i]);
+				}
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * k nearest clusters for each entry with distances to them. The first cluster
+	 * is always the same as the result of predict. Default implementation returns
+	 * only this cluster (distance 0); subclasses with centroids return up to k
+	 * clusters sorted by distance.
+	 * 
+	 * @param features features
+	 * @param k        maximal number of clusters for each entry
+	 * @return left: cluster numbers [entry][up to k], right: distances
+	 */
+	public Pair<int[][], float[][]> predictNearest(float[][] features, int k) {
+		int[] c = this.predict(features);
+		int[][] clusters = new int[c.length][];
+		float[][] distances = new float[c.length][];
+		for (int i = 0; i < c.length; i++) {
+			clusters[i] = new int[] { c[i] };
+			distances[i] = new float[] { 0f };
+		}
+		return Pair.of(clusters, distances);
+	}
+
+	public Pair<int[][], float[][]> predictNearest(String[] smiles, FeaturesGenerator g, int k) {
 		g.precompute(smiles);
 		float[][] f = g.features(smiles);
-		int[] c = this.predict(f);
-		return c;
+		return this.predictNearest(f, k);
+	}
+
+	/**
+	 * Helper for subclasses: rank centroids by Euclidean distance, the cluster
+	 * assigned by predict is placed first.
+	 * 
+	 * @param x         (projected) features
+	 * @param centroids centroid of each cluster
+	 * @param first     clusters assigned by predict
+	 * @param k         maximal number of clusters for each entry
+	 * @return left: cluster numbers, right: distances
+	 */
+	protected static Pair<int[][], float[][]> nearestCentroids(double[][] x, double[][] centroids, int[] first,
+			int k) {
+		int m = Math.min(k, centroids.length);
+		int[][] clusters = new int[x.length][m];
+		float[][] distances = new float[x.length][m];
+		for (int i = 0; i < x.length; i++) {
+			float[] d = new float[centroids.length];
+			for (int j = 0; j < centroids.length; j++) {
+				double s = 0;
+				for (int c = 0; c < x[i].length; c++) {
+					double t = x[i][c] - centroids[j][c];
+					s += t * t;
+				}
+				d[j] = (float) Math.sqrt(s);
+			}
+			clusters[i][0] = first[i];
+			distances[i][0] = d[first[i]];
+			d[first[i]] = Float.POSITIVE_INFINITY;
+			if (m > 1) {
+				int[] rest = ArUtls.kLeastElements(d, m - 1);
+				for (int j = 1; j < m; j++) {
+					clusters[i][j] = rest[j - 1];
+					distances[i][j] = d[rest[j - 1]];
+				}
+			}
+		}
+		return Pair.of(clusters, distances);
 	}
 
 	public ChemDataset[] predictAndSplit(ChemDataset d, FeaturesGenerator g) {
-		g.precompute(d);
-		float[][] f = g.features(d);
-		int[] c = this.predict(f);
+		int[] c = this.predict(d, g);
 		@SuppressWarnings("unchecked")
 		ArrayList<DatasetEntry>[] r = new ArrayList[clustersNum];
 		for (int i = 0; i < clustersNum; i++) {
@@ -60,6 +253,9 @@ public abstract class Clustering {
 	}
 
 	public int[] predict(ChemDataset d, FeaturesGenerator g) {
+		if (assignmentCache != null) {
+			return this.predict(d.allSmiles(), g);
+		}
 		g.precompute(d);
 		float[][] f = g.features(d);
 		int[] c = this.predict(f);
@@ -1,6 +1,8 @@
 package ru.ac.phyche.ribyclusters.clusters;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -13,18 +15,27 @@ import com.thoughtworks.xstream.io.xml.StaxDriver;
 
 import ru.ac.phyche.ribyclusters.ArUtls;
 import smile.clustering.DBSCAN;
+import smile.neighbor.KDTree;
 import smile.projection.PCA;
 
 public class DBSCANClustering extends Clustering {
+	// leaves of random projection trees hold at least this many times minPts points: a query sees only one
+	// leaf per tree, smaller leaves would make core points unreachable and turn clusters into noise
+	private static final int minLeafSizeToMinPts = 2;
 	private DBSCAN<double[]> cl = null;
 	private int nPCA = 10;
 	private boolean pcaRequired = false;
 	private PCA pca = null;
 	private int minPts = 100;
 	private float radius = 0.1f;
+	private int annTrees = 0; // 0 - exact search with KD-tree, >0 - random projection forest
+	private int annLeafSize = 50;
+	private double[][] points = null; // (projected) training set, required for binary model format
+	private RandomProjectionForest forest = null;
 
 	@Override
 	public int[] train(float[][] features) {
+		invalidateAssignmentCache();
 		double[][] featuresDouble = ArUtls.toDoubleArray2d(features);
 		if (pcaRequired) {
 			nPCA = Math.min(Math.min(nPCA, features.length), features[0].length);
@@ -32,7 +43,14 @@ public class DBSCANClustering extends Clustering {
 			pca.setProjection(nPCA);
 			featuresDouble = pca.project(featuresDouble);
 		}
-		cl = DBSCAN.fit(featuresDouble, minPts, radius);
+		points = featuresDouble;
+		if (annTrees > 0) {
+			forest = new RandomProjectionForest(featuresDouble, annTrees, annLeafSize);
+			cl = DBSCAN.fit(featuresDouble, forest, minPts, radius);
+		} else {
+			forest = null;
+			cl = DBSCAN.fit(featuresDouble, minPts, radius);
+		}
 		int[] r = new int[features.length];
 		this.setClustersNum(cl.k + 1);
 
@@ -51,6 +69,11 @@ public class DBSCANClustering extends Clustering {
 		FileWriter fw = new FileWriter(new File(directoryName, "ModelType.txt"));
 		fw.write(this.modelType());
 		fw.close();
+		if (points != null) {
+			saveBinary(directoryName);
+			return;
+		}
+		// model was loaded from the old XML format, training set is not available
 		fw = new FileWriter(new File(directoryName, "info.txt"));
 		fw.write(this.getClustersNum() + " " + (this.pcaRequired ? "1" : "0"));
 		fw.close();
@@ -66,9 +89,54 @@ public class DBSCANClustering extends Clustering {
 		}
 	}
 
+	private void saveBinary(String directoryName) throws IOException {
+		DataOutputStream out = BinaryModelFormat.create(directoryName, this.modelType());
+		out.writeInt(this.getClustersNum());
+		out.writeBoolean(this.pcaRequired);
+		out.writeInt((int) Math.round(cl.minPts));
+		out.writeDouble(cl.radius);
+		out.writeInt(cl.k);
+		BinaryModelFormat.writeArray(out, cl.y);
+		BinaryModelFormat.writeMatrix(out, points);
+		if (forest != null) {
+			BinaryModelFormat.writeTrees(out, forest.getTrees());
+		} else {
+			out.writeInt(0);
+		}
+		if (pcaRequired) {
+			BinaryModelFormat.writePCA(out, pca, nPCA);
+		}
+		out.close();
+	}
+
+	private void loadBinary(String directoryName) throws IOException {
+		DataInputStream in = BinaryModelFormat.open(directoryName, this.modelType());
+		this.setClustersNum(in.readInt());
+		this.pcaRequired = in.readBoolean();
+		this.minPts = in.readInt();
+		this.radius = (float) in.readDouble();
+		int k = in.readInt();
+		int[] y = BinaryModelFormat.readIntArray(in);
+		points = BinaryModelFormat.readMatrix(in);
+		RandomProjectionForest.Tree[] trees = BinaryModelFormat.readTrees(in);
+		if (trees.length > 0) {
+			forest = new RandomProjectionForest(points, trees);
+			cl = new DBSCAN<double[]>(minPts, radius, forest, k, y);
+		} else {
+			forest = null;
+			cl = new DBSCAN<double[]>(minPts, radius, new KDTree<double[]>(points, points), k, y);
+		}
+		if (pcaRequired) {
+			pca = BinaryModelFormat.readPCA(in);
+			this.nPCA = pca.getProjection().nrows();
+		}
+		in.close();
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public void load(String directoryName) throws IOException {
+		invalidateAssignmentCache();
 		BufferedReader br = new BufferedReader(new FileReader(new File(directoryName, "ModelType.txt")));
 		String s = br.readLine();
 		while (s.trim().equals("")) {
@@ -78,6 +146,12 @@ public class DBSCANClustering extends Clustering {
 		if (!s.trim().equals(this.modelType())) {
 			throw new RuntimeException("Wrong model type");
 		}
+		if (BinaryModelFormat.exists(directoryName)) {
+			loadBinary(directoryName);
+			return;
+		}
+		points = null;
+		forest = null;
 		br = new BufferedReader(new FileReader(new File(directoryName, "info.txt")));
 		s = br.readLine();
 		while (s.trim().equals("")) {
@@ -88,7 +162,9 @@ public class DBSCANClustering extends Clustering {
 		this.setClustersNum(Integer.parseInt(split[0]));
 		this.pcaRequired = Float.parseFloat(split[1]) >= 0.5;
 		XStream xstream = new XStream();
-		xstream.allowTypes(new String[] { "smile.clustering.DBSCAN", "smile.neighbor.KDTree" });
+		xstream.allowTypes(new String[] { "smile.clustering.DBSCAN", "smile.neighbor.KDTree",
+				"ru.ac.phyche.ribyclusters.clusters.RandomProjectionForest",
+				"ru.ac.phyche.ribyclusters.clusters.RandomProjectionForest$Tree" });
 		cl = (DBSCAN<double[]>) xstream.fromXML(new File(directoryName, "dbscan.xml"));
 		xstream = new XStream();
 		if (pcaRequired) {
@@ -129,15 +205,25 @@ public class DBSCANClustering extends Clustering {
 		return r;
 	}
 
+	/**
+	 * 
+	 * @param parameters nPCA, pcaRequired, minPts, radius and optionally annTrees
+	 *                   and annLeafSize; annLeafSize smaller than 2 * minPts is
+	 *                   raised to 2 * minPts (see minLeafSizeToMinPts)
+	 */
 	@Override
 	public void init(float[] parameters) {
-		if (parameters.length != 4) {
-			throw new RuntimeException("Wrong number of parameters. KMeansIterative has 4 parameters.");
+		if ((parameters.length != 4) && (parameters.length != 6)) {
+			throw new RuntimeException("Wrong number of parameters. DBSCANClustering has 4 or 6 parameters.");
 		}
 		this.nPCA = Math.round(parameters[0]);
 		this.pcaRequired = parameters[1] >= 0.5 && this.nPCA > 1;
 		this.minPts = Math.round(parameters[2]);
 		this.radius = parameters[3];
+		if (parameters.length == 6) {
+			this.annTrees = Math.round(parameters[4]);
+			this.annLeafSize = Math.max(Math.round(parameters[5]), minLeafSizeToMinPts * minPts);
+		}
 	}
 
 	@Override
@@ -152,6 +238,6 @@ public class DBSCANClustering extends Clustering {
 
 	@Override
 	public String paramsNames() {
-		return "nPCA pcaRequired minPts radius";
+		return "nPCA pcaRequired minPts radius [annTrees annLeafSize(at least 2*minPts)]";
 	}
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package ru.ac.phyche.ribyclusters.clusters;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -8,9 +10,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.tuple.Pair;
 
 import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.io.xml.StaxDriver;
 
 import ru.ac.phyche.ribyclusters.ArUtls;
 import smile.clustering.KMeans;
@@ -26,15 +30,22 @@ public class KMeansIterative extends Clustering {
 	private ArrayList<int[]> nodes; // array of next nodes for each non-leaf node, null for leafs
 	private int nSplit = 3;
 	private int maxEntriesInCluster = 500;
+	private boolean balanced = false;
+	private ArrayList<double[]> biases; // biases of squared distances to centroids for balanced nodes, null instead
+	private static final int balancingRounds = 3;
+	private static final int maxBalancingIterations = 2000;
+	private static final double balancedLeafFill = 0.95; // planned size of leaf relative to maxEntriesInCluster
+	private static final double balancingTolerance = 1.03; // allowed excess over planned size of child
 
 	private void testListSizes(int n) {
-		if ((leafNumbers.size() != n) || (nodes.size() != n) || (kms.size() != n)) {
+		if ((leafNumbers.size() != n) || (nodes.size() != n) || (kms.size() != n) || (biases.size() != n)) {
 			throw new RuntimeException("Tree clusterization error");
 		}
 	}
 
 	@Override
 	public int[] train(float[][] features) {
+		invalidateAssignmentCache();
 		ArrayList<int[]> entriesAtEachNode; // array of entry numbers at each node
 		boolean cont = true;
 		double[][] featuresDouble = ArUtls.toDoubleArray2d(features);
@@ -55,27 +66,41 @@ public class KMeansIterative extends Clustering {
 		entriesAtEachNode = new ArrayList<int[]>();
 		leafNumbers = new ArrayList<Integer>();
 		kms = new ArrayList<KMeans>();
+		biases = new ArrayList<double[]>();
 		nodes.add(null);
 		entriesAtEachNode.add(ArUtls.ints(features.length));
 		kms.add(null);
+		biases.add(null);
 		leafNumbers.add(-1);
 		while (cont) {
 			testListSizes(entriesAtEachNode.size());
 			int n = kms.size();
+			cont = false;
 			for (int i = 0; i < n; i++) {
-				cont = false;
 				if (nodes.get(i) == null) {
 					if (kms.get(i) != null) {
 						throw new RuntimeException("Tree clusterization error");
 					}
 					if (entriesAtEachNode.get(i).length > maxEntriesInCluster) {
 						cont = true;
-						kms.set(i, KMeans.fit(ArUtls.subarray(featuresDouble, entriesAtEachNode.get(i)), nSplit));
-						int[] newNodes = new int[nSplit];
+						double[][] subset = ArUtls.subarray(featuresDouble, entriesAtEachNode.get(i));
+						int k = nSplit;
+						if (balanced) {
+							int nLeafs = (int) Math.ceil(subset.length / (balancedLeafFill * maxEntriesInCluster));
+							k = Math.max(2, Math.min(nSplit, nLeafs));
+							KMeans km = KMeans.fit(subset, k);
+							double[] bias = new double[k];
+							kms.set(i, balancedSplit(subset, km, nLeafs, maxEntriesInCluster, bias));
+							biases.set(i, bias);
+						} else {
+							kms.set(i, KMeans.fit(subset, k));
+						}
+						int[] newNodes = new int[k];
 						int[] clusterNums = kms.get(i).y;
 						int n1 = kms.size();
-						for (int j = 0; j < nSplit; j++) {
+						for (int j = 0; j < k; j++) {
 							kms.add(null);
+							biases.add(null);
 							leafNumbers.add(-1);
 							nodes.add(null);
 							ArrayList<Integer> entries = new ArrayList<Integer>();
@@ -112,49 +137,230 @@ public class KMeansIterative extends Clustering {
 		return result;
 	}
 
+	private int child(int node, double[] x) {
+		double[] bias = biases.get(node);
+		if (bias == null) {
+			return kms.get(node).predict(x);
+		}
+		return nearest(kms.get(node).centroids, bias, x);
+	}
+
+	private static double squaredDistance(double[] a, double[] b) {
+		double s = 0;
+		for (int i = 0; i < a.length; i++) {
+			double d = a[i] - b[i];
+			s += d * d;
+		}
+		return s;
+	}
+
+	private static int nearest(double[][] centroids, double[] bias, double[] x) {
+		int best = 0;
+		double bestD = Double.MAX_VALUE;
+		for (int j = 0; j < centroids.length; j++) {
+			double d = squaredDistance(x, centroids[j]) + bias[j];
+			if (d < bestD) {
+				bestD = d;
+				best = j;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Capacity-constrained split of a node. Leafs of the subtree (nLeafs) are
+	 * distributed among children, each child gets capacity proportional to its
+	 * number of leafs. Points are assigned to argmin of squared distance to
+	 * centroid plus bias of this centroid. Biases are adjusted until capacities
+	 * are satisfied, then centroids are recomputed (several rounds). The same biased rule is used in predict, so training
+	 * compounds are split in the same way when they are predicted.
+	 * 
+	 * @param x      points of the node
+	 * @param km     initial (ordinary) k-means split
+	 * @param nLeafs number of leafs required under this node
+	 * @param maxLeaf maximum number of entries in leaf
+	 * @param bias   output: biases for each child
+	 * @return k-means model with recomputed centroids and balanced labels
+	 */
+	private static KMeans balancedSplit(double[][] x, KMeans km, int nLeafs, int maxLeaf, double[] bias) {
+		int k = km.centroids.length;
+		int n = x.length;
+		Integer[] order = new Integer[k];
+		for (int j = 0; j < k; j++) {
+			order[j] = j;
+		}
+		Arrays.sort(order, (a, b) -> Integer.compare(km.size[b], km.size[a]));
+		int[] capacity = new int[k];
+		int assigned = 0;
+		for (int r = 0; r < k; r++) {
+			int leafs = nLeafs / k + ((r < nLeafs % k) ? 1 : 0);
+			capacity[order[r]] = Math.min((int) Math.ceil(balancingTolerance * n * leafs / nLeafs), leafs * maxLeaf);
+			assigned += leafs;
+		}
+		if (assigned != nLeafs) {
+			throw new RuntimeException("Tree clusterization error");
+		}
+		double[][] centroids = new double[k][];
+		for (int j = 0; j < k; j++) {
+			centroids[j] = km.centroids[j].clone();
+		}
+		int[] y = new int[n];
+		double[][] d = new double[n][k];
+		for (int round = 0; round < balancingRounds; round++) {
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < k; j++) {
+					d[i][j] = squaredDistance(x[i], centroids[j]);
+				}
+			}
+			balanceBiases(d, capacity, bias);
+			if (round == balancingRounds - 1) {
+				break;
+			}
+			for (int i = 0; i < n; i++) {
+				y[i] = nearest(d[i], bias);
+			}
+			int[] size = new int[k];
+			double[][] sum = new double[k][x[0].length];
+			for (int i = 0; i < n; i++) {
+				size[y[i]]++;
+				for (int c = 0; c < x[i].length; c++) {
+					sum[y[i]][c] += x[i][c];
+				}
+			}
+			for (int j = 0; j < k; j++) {
+				if (size[j] > 0) {
+					for (int c = 0; c < sum[j].length; c++) {
+						centroids[j][c] = sum[j][c] / size[j];
+					}
+				}
+			}
+		}
+		double distortion = 0;
+		for (int i = 0; i < n; i++) {
+			y[i] = nearest(d[i], bias);
+			distortion += squaredDistance(x[i], centroids[y[i]]);
+		}
+		return new KMeans(distortion, centroids, y);
+	}
+
+	/**
+	 * Dual (sub)gradient ascent for capacity-constrained assignment: bias of each
+	 * child is changed proportionally to its overfill (or underfill) until all
+	 * capacities are satisfied. Biases with the least total overfill are kept.
+	 * 
+	 * @param d        squared distances from points to centroids
+	 * @param capacity capacities of children
+	 * @param bias     input: initial biases, output: resulting biases
+	 */
+	private static void balanceBiases(double[][] d, int[] capacity, double[] bias) {
+		int n = d.length;
+		int k = capacity.length;
+		double scale = 0; // mean gap between the nearest and the second nearest centroid
+		for (int i = 0; i < n; i++) {
+			double best = Double.MAX_VALUE;
+			double second = Double.MAX_VALUE;
+			for (int j = 0; j < k; j++) {
+				if (d[i][j] < best) {
+					second = best;
+					best = d[i][j];
+				} else if (d[i][j] < second) {
+					second = d[i][j];
+				}
+			}
+			scale += (second - best) / n;
+		}
+		double[] b = bias.clone();
+		int bestOverfill = Integer.MAX_VALUE;
+		for (int iter = 0; iter < maxBalancingIterations; iter++) {
+			int[] size = new int[k];
+			for (int i = 0; i < n; i++) {
+				size[nearest(d[i], b)]++;
+			}
+			int overfill = 0;
+			for (int j = 0; j < k; j++) {
+				overfill += Math.max(0, size[j] - capacity[j]);
+			}
+			if (overfill < bestOverfill) {
+				bestOverfill = overfill;
+				System.arraycopy(b, 0, bias, 0, k);
+			}
+			if (overfill == 0) {
+				return;
+			}
+			double step = scale / Math.sqrt(iter + 1.0);
+			for (int j = 0; j < k; j++) {
+				b[j] += step * (size[j] - capacity[j]) / ((double) capacity[j]);
+			}
+		}
+	}
+
+	private static int nearest(double[] distances, double[] bias) {
+		int best = 0;
+		for (int j = 1; j < distances.length; j++) {
+			if (distances[j] + bias[j] < distances[best] + bias[best]) {
+				best = j;
+			}
+		}
+		return best;
+	}
+
 	@Override
 	public void save(String directoryName) throws IOException {
 		Files.createDirectories(Paths.get(directoryName));
 		FileWriter fw = new FileWriter(new File(directoryName, "ModelType.txt"));
 		fw.write(this.modelType());
 		fw.close();
-		fw = new FileWriter(new File(directoryName, "info.txt"));
-		fw.write(this.getClustersNum() + " " + (this.pcaRequired ? "1" : "0") + " " + this.nodes.size());
-		fw.close();
-
-		FileWriter fwNodes = new FileWriter(new File(directoryName, "nodes.txt"));
-		FileWriter fwLeafNums = new FileWriter(new File(directoryName, "leafClusterNum.txt"));
+		DataOutputStream out = BinaryModelFormat.create(directoryName, this.modelType());
+		out.writeInt(this.getClustersNum());
+		out.writeBoolean(this.pcaRequired && (pca != null));
+		out.writeInt(this.nodes.size());
 		for (int i = 0; i < this.nodes.size(); i++) {
-			if (kms.get(i) != null) {
-				fw = new FileWriter(new File(directoryName, "kmeans" + i + ".xml"));
-				XStream xstream = new XStream(new StaxDriver());
-				xstream.toXML(kms.get(i), fw);
-			}
-			fw.close();
-			fwLeafNums.write(leafNumbers.get(i) + " ");
+			out.writeInt(leafNumbers.get(i));
 			if (nodes.get(i) != null) {
-				for (int j = 0; j < nodes.get(i).length; j++) {
-					fwNodes.write(nodes.get(i)[j] + " ");
-				}
+				BinaryModelFormat.writeArray(out, nodes.get(i));
+				BinaryModelFormat.writeKMeans(out, kms.get(i));
+				BinaryModelFormat.writeArray(out, biases.get(i) == null ? new double[0] : biases.get(i));
+			}
+		}
+		if (this.pcaRequired && (pca != null)) {
+			BinaryModelFormat.writePCA(out, pca, nPCA);
+		}
+		out.close();
+	}
+
+	private void loadBinary(String directoryName) throws IOException {
+		DataInputStream in = BinaryModelFormat.open(directoryName, this.modelType());
+		this.setClustersNum(in.readInt());
+		this.pcaRequired = in.readBoolean();
+		int n = in.readInt();
+		this.nodes = new ArrayList<int[]>(n);
+		this.leafNumbers = new ArrayList<Integer>(n);
+		this.kms = new ArrayList<KMeans>(n);
+		this.biases = new ArrayList<double[]>(n);
+		for (int i = 0; i < n; i++) {
+			int leafNumber = in.readInt();
+			this.leafNumbers.add(leafNumber);
+			if (leafNumber == -1) {
+				this.nodes.add(BinaryModelFormat.readIntArray(in));
+				this.kms.add(BinaryModelFormat.readKMeans(in));
+				double[] bias = BinaryModelFormat.readDoubleArray(in);
+				this.biases.add((bias.length == 0) ? null : bias);
 			} else {
-				fwNodes.write("null");
+				this.nodes.add(null);
+				this.kms.add(null);
+				this.biases.add(null);
 			}
-			fwNodes.write("\n");
 		}
-		fwLeafNums.close();
-		fwNodes.close();
 		if (pcaRequired) {
-			if (pca != null) {
-				fw = new FileWriter(new File(directoryName, "pca.xml"));
-				XStream xstream = new XStream(new StaxDriver());
-				xstream.toXML(pca, fw);
-				fw.close();
-			}
+			pca = BinaryModelFormat.readPCA(in);
+			this.nPCA = pca.getProjection().nrows();
 		}
+		in.close();
 	}
 
 	@Override
 	public void load(String directoryName) throws IOException {
+		invalidateAssignmentCache();
 		BufferedReader br = new BufferedReader(new FileReader(new File(directoryName, "ModelType.txt")));
 		String s = br.readLine();
 		while (s.trim().equals("")) {
@@ -164,6 +370,10 @@ public class KMeansIterative extends Clustering {
 		if (!s.trim().equals(this.modelType())) {
 			throw new RuntimeException("Wrong model type");
 		}
+		if (BinaryModelFormat.exists(directoryName)) {
+			loadBinary(directoryName);
+			return;
+		}
 		br = new BufferedReader(new FileReader(new File(directoryName, "info.txt")));
 		s = br.readLine();
 		while (s.trim().equals("")) {
@@ -188,6 +398,7 @@ public class KMeansIterative extends Clustering {
 		this.nodes=new ArrayList<int[]>();
 		this.leafNumbers=new ArrayList<Integer>();
 		this.kms=new ArrayList<KMeans>();
+		this.biases = new ArrayList<double[]>();
 		for (int i = 0; i < nodes; i++) {
 			s = br.readLine();
 			while (s.trim().equals("")) {
@@ -207,6 +418,7 @@ public class KMeansIterative extends Clustering {
 				xstream.allowTypes(new String[] {"smile.clustering.KMeans"});
 				this.kms.add((KMeans) xstream.fromXML(new File(directoryName, "kmeans" + i + ".xml")));
 				this.leafNumbers.add(-1);
+				this.biases.add(null);
 			} else {
 				if (Integer.parseInt(split[i]) == -1) {
 					throw new RuntimeException("Wrong number of nodes");
@@ -214,6 +426,7 @@ public class KMeansIterative extends Clustering {
 				this.leafNumbers.add(Integer.parseInt(split[i]));
 				this.kms.add(null);
 				this.nodes.add(null);
+				this.biases.add(null);
 			}
 		}
 		if (pcaRequired) {
@@ -226,6 +439,10 @@ public class KMeansIterative extends Clustering {
 
 	@Override
 	public int[] predict(float[][] features) {
+		return predict(project(features));
+	}
+
+	private double[][] project(float[][] features) {
 		double[][] featuresDouble = ArUtls.toDoubleArray2d(features);
 		if (pcaRequired) {
 			pca.setProjection(nPCA);
@@ -238,26 +455,59 @@ public class KMeansIterative extends Clustering {
 			}
 			featuresDouble = pcaD;
 		}
-		int[] result = new int[features.length];
-		for (int i = 0; i < features.length; i++) {
+		return featuresDouble;
+	}
+
+	private int[] predict(double[][] featuresDouble) {
+		int[] result = new int[featuresDouble.length];
+		for (int i = 0; i < featuresDouble.length; i++) {
 			int curnode = 0;
 			while (nodes.get(curnode) != null) {
-				curnode = nodes.get(curnode)[kms.get(curnode).predict(featuresDouble[i])];
+				curnode = nodes.get(curnode)[child(curnode, featuresDouble[i])];
 			}
 			result[i] = leafNumbers.get(curnode);
 		}
 		return result;
 	}
 
+	/**
+	 * 
+	 * @return centroid of each leaf (centroid of parent's k-means for this child)
+	 */
+	private double[][] leafCentroids() {
+		double[][] result = new double[this.getClustersNum()][];
+		for (int i = 0; i < nodes.size(); i++) {
+			if (nodes.get(i) != null) {
+				for (int j = 0; j < nodes.get(i).length; j++) {
+					int leaf = leafNumbers.get(nodes.get(i)[j]);
+					if (leaf != -1) {
+						result[leaf] = kms.get(i).centroids[j];
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Pair<int[][], float[][]> predictNearest(float[][] features, int k) {
+		if (nodes.get(0) == null) {
+			return super.predictNearest(features, k);
+		}
+		double[][] featuresDouble = project(features);
+		return nearestCentroids(featuresDouble, leafCentroids(), predict(featuresDouble), k);
+	}
+
 	@Override
 	public void init(float[] parameters) {
-		if (parameters.length != 4) {
-			throw new RuntimeException("Wrong number of parameters. KMeansIterative has 4 parameters.");
+		if ((parameters.length != 4) && (parameters.length != 5)) {
+			throw new RuntimeException("Wrong number of parameters. KMeansIterative has 4 or 5 parameters.");
 		}
 		this.nPCA = Math.round(parameters[0]);
 		this.pcaRequired = parameters[1] >= 0.5 && this.nPCA > 1;
 		this.maxEntriesInCluster = Math.round(parameters[2]);
 		this.nSplit = Math.round(parameters[3]);
+		this.balanced = (parameters.length == 5) && (parameters[4] >= 0.5);
 	}
 
 	public void init() {
@@ -271,6 +521,6 @@ public class KMeansIterative extends Clustering {
 
 	@Override
 	public String paramsNames() {
-		return "nPCA pcaRequired maxEntriesInCluster nSplit";
+		return "nPCA pcaRequired maxEntriesInCluster nSplit [balanced]";
 	}
 }
\ No newline at end of file
@@ -1,6 +1,8 @@
 package ru.ac.phyche.ribyclusters.clusters;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -8,8 +10,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
+import org.apache.commons.lang3.tuple.Pair;
+
 import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.io.xml.StaxDriver;
 
 import ru.ac.phyche.ribyclusters.ArUtls;
 import smile.clustering.KMeans;
@@ -22,6 +25,7 @@ public class KMeansPCA extends Clustering {
 
 	@Override
 	public int[] train(float[][] features) {
+		invalidateAssignmentCache();
 		double[][] featuresDouble = ArUtls.toDoubleArray2d(features);
 		nPCA = Math.min(Math.min(nPCA, features.length), features[0].length);
 		pca = PCA.fit(featuresDouble);
@@ -50,18 +54,15 @@ public class KMeansPCA extends Clustering {
 		fw = new FileWriter(new File(directoryName, "k.txt"));
 		fw.write(this.getClustersNum() + "");
 		fw.close();
-		fw = new FileWriter(new File(directoryName, "kmeans.xml"));
-		XStream xstream = new XStream(new StaxDriver());
-		xstream.toXML(km, fw);
-		fw.close();
-		fw = new FileWriter(new File(directoryName, "pca.xml"));
-		xstream = new XStream(new StaxDriver());
-		xstream.toXML(pca, fw);
-		fw.close();
+		DataOutputStream out = BinaryModelFormat.create(directoryName, this.modelType());
+		BinaryModelFormat.writeKMeans(out, km);
+		BinaryModelFormat.writePCA(out, pca, nPCA);
+		out.close();
 	}
 
 	@Override
 	public void load(String directoryName) throws IOException {
+		invalidateAssignmentCache();
 		BufferedReader br = new BufferedReader(new FileReader(new File(directoryName, "ModelType.txt")));
 		String s = br.readLine();
 		while (s.trim().equals("")) {
@@ -78,6 +79,14 @@ public class KMeansPCA extends Clustering {
 		}
 		br.close();
 		this.setClustersNum(Integer.parseInt(s.trim()));
+		if (BinaryModelFormat.exists(directoryName)) {
+			DataInputStream in = BinaryModelFormat.open(directoryName, this.modelType());
+			km = BinaryModelFormat.readKMeans(in);
+			pca = BinaryModelFormat.readPCA(in);
+			in.close();
+			this.nPCA = pca.getProjection().nrows();
+			return;
+		}
 		XStream xstream = new XStream();
 		xstream.allowTypes(new String[] { "smile.clustering.KMeans" });
 		km = (KMeans) xstream.fromXML(new File(directoryName, "kmeans.xml"));
@@ -105,6 +114,16 @@ public class KMeansPCA extends Clustering {
 		return r;
 	}
 
+	@Override
+	public Pair<int[][], float[][]> predictNearest(float[][] features, int k) {
+		double[][] pcaD = pca.project(ArUtls.toDoubleArray2d(features));
+		int[] first = new int[features.length];
+		for (int i = 0; i < first.length; i++) {
+			first[i] = km.predict(pcaD[i]);
+		}
+		return nearestCentroids(pcaD, km.centroids, first, k);
+	}
+
 	@Override
 	public void init(float[] parameters) {
 		this.setClustersNum(Math.round(parameters[0]));
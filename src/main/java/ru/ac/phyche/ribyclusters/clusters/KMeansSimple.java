@@ -1,6 +1,8 @@
 package ru.ac.phyche.ribyclusters.clusters;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -8,8 +10,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
+import org.apache.commons.lang3.tuple.Pair;
+
 import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.io.xml.StaxDriver;
 
 import ru.ac.phyche.ribyclusters.ArUtls;
 import smile.clustering.KMeans;
@@ -20,6 +23,7 @@ public class KMeansSimple extends Clustering {
 
 	@Override
 	public int[] train(float[][] features) {
+		invalidateAssignmentCache();
 		double[][] f = ArUtls.toDoubleArray2d(features);
 		km = KMeans.fit(f, this.getClustersNum());
 		int[] r = new int[features.length];
@@ -38,14 +42,14 @@ public class KMeansSimple extends Clustering {
 		fw = new FileWriter(new File(directoryName, "k.txt"));
 		fw.write(this.getClustersNum()+"");
 		fw.close();
-		fw = new FileWriter(new File(directoryName, "kmeans.xml"));
-		XStream xstream = new XStream(new StaxDriver());
-		xstream.toXML(km, fw);
-		fw.close();
+		DataOutputStream out = BinaryModelFormat.create(directoryName, this.modelType());
+		BinaryModelFormat.writeKMeans(out, km);
+		out.close();
 	}
 
 	@Override
 	public void load(String directoryName) throws IOException {
+		invalidateAssignmentCache();
 		BufferedReader br = new BufferedReader(new FileReader(new File(directoryName, "ModelType.txt")));
 		String s = br.readLine();
 		while (s.trim().equals("")) {
@@ -62,6 +66,12 @@ public class KMeansSimple extends Clustering {
 		}
 		br.close();
 		this.setClustersNum(Integer.parseInt(s.trim()));
+		if (BinaryModelFormat.exists(directoryName)) {
+			DataInputStream in = BinaryModelFormat.open(directoryName, this.modelType());
+			km = BinaryModelFormat.readKMeans(in);
+			in.close();
+			return;
+		}
 		XStream xstream = new XStream();
 		xstream.allowTypes(new String[] {});
 		km = (KMeans) xstream.fromXML(new File(directoryName, "kmeans.xml"));
@@ -77,10 +87,20 @@ public class KMeansSimple extends Clustering {
 		return r;
 	}
 
+	@Override
+	public Pair<int[][], float[][]> predictNearest(float[][] features, int k) {
+		double[][] f = ArUtls.toDoubleArray2d(features);
+		int[] first = new int[features.length];
+		for (int i = 0; i < first.length; i++) {
+			first[i] = km.predict(f[i]);
+		}
+		return nearestCentroids(f, km.centroids, first, k);
+	}
+
 	@Override
 	public void init(float[] parameters) {
 		this.setClustersNum(Math.round(parameters[0]));
-		if (parameters.length != 0) {
+		if (parameters.length != 1) {
 			throw new RuntimeException("Wrong number of parameters. KMeansSimple has 1 parameter.");
 		}
 	}
@@ -0,0 +1,288 @@
+package ru.ac.phyche.ribyclusters.clusters;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import smile.neighbor.KNNSearch;
+import smile.neighbor.Neighbor;
+import smile.neighbor.RNNSearch;
+
+/**
+ * Approximate nearest neighbour search using a forest of random projection
+ * trees. Each internal node splits its points by the hyperplane orthogonal to
+ * the difference of two random points of this node (the split threshold is the
+ * median of projections). Query descends to one leaf in each tree (to all
+ * leaves below nodes where all projections are equal), the union of leaves is
+ * checked with exact Euclidean distance. Unlike KD-tree it doesn't
+ * degrade to brute force for high-dimensional features. Results are
+ * approximate: some neighbours can be missed, more trees give better recall.
+ */
+public class RandomProjectionForest implements RNNSearch<double[], double[]>, KNNSearch<double[], double[]>, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private double[][] data;
+	private Tree[] trees;
+
+	/**
+	 * Tree is stored as flat arrays. For internal node i: points a[i] and b[i]
+	 * define the split direction (data[a[i]] - data[b[i]]), left[i] and right[i]
+	 * are numbers of child nodes. For leaf node items[i] contains numbers of
+	 * points, for internal nodes items[i] is null.
+	 */
+	static class Tree implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int[] a;
+		int[] b;
+		double[] threshold;
+		int[] left;
+		int[] right;
+		int[][] items;
+	}
+
+	public RandomProjectionForest(double[][] data, int nTrees, int leafSize) {
+		this(data, nTrees, leafSize, new Random());
+	}
+
+	public RandomProjectionForest(double[][] data, int nTrees, int leafSize, Random rnd) {
+		if ((nTrees < 1) || (leafSize < 1)) {
+			throw new RuntimeException("Wrong parameters of random projection forest");
+		}
+		this.data = data;
+		this.trees = new Tree[nTrees];
+		for (int t = 0; t < nTrees; t++) {
+			trees[t] = buildTree(leafSize, rnd);
+		}
+	}
+
+	RandomProjectionForest(double[][] data, Tree[] trees) {
+		this.data = data;
+		this.trees = trees;
+	}
+
+	double[][] getData() {
+		return data;
+	}
+
+	Tree[] getTrees() {
+		return trees;
+	}
+
+	private static double projection(double[] x, double[] a, double[] b) {
+		double s = 0;
+		for (int i = 0; i < x.length; i++) {
+			s += x[i] * (a[i] - b[i]);
+		}
+		return s;
+	}
+
+	private static double squaredDistance(double[] x, double[] y) {
+		double s = 0;
+		for (int i = 0; i < x.length; i++) {
+			double d = x[i] - y[i];
+			s += d * d;
+		}
+		return s;
+	}
+
+	private Tree buildTree(int leafSize, Random rnd) {
+		ArrayList<Integer> a = new ArrayList<Integer>();
+		ArrayList<Integer> b = new ArrayList<Integer>();
+		ArrayList<Double> threshold = new ArrayList<Double>();
+		ArrayList<Integer> left = new ArrayList<Integer>();
+		ArrayList<Integer> right = new ArrayList<Integer>();
+		ArrayList<int[]> items = new ArrayList<int[]>();
+		ArrayList<int[]> toSplit = new ArrayList<int[]>(); // entries of each node, null after processing
+		int[] all = new int[data.length];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = i;
+		}
+		toSplit.add(all);
+		a.add(-1);
+		b.add(-1);
+		threshold.add(0.0);
+		left.add(-1);
+		right.add(-1);
+		items.add(null);
+		for (int node = 0; node < toSplit.size(); node++) {
+			int[] idx = toSplit.get(node);
+			toSplit.set(node, null);
+			if (idx.length <= leafSize) {
+				items.set(node, idx);
+				continue;
+			}
+			int pa = idx[rnd.nextInt(idx.length)];
+			int pb = idx[rnd.nextInt(idx.length)];
+			for (int attempt = 0; (attempt < 10) && (squaredDistance(data[pa], data[pb]) == 0); attempt++) {
+				pb = idx[rnd.nextInt(idx.length)];
+			}
+			double[] p = new double[idx.length];
+			for (int i = 0; i < idx.length; i++) {
+				p[i] = projection(data[idx[i]], data[pa], data[pb]);
+			}
+			double[] sorted = p.clone();
+			Arrays.sort(sorted);
+			double median = sorted[sorted.length / 2];
+			int nLeft = 0;
+			for (int i = 0; i < idx.length; i++) {
+				nLeft += (p[i] < median) ? 1 : 0;
+			}
+			if ((nLeft == 0) && (median < sorted[sorted.length - 1])) {
+				// more than half of projections are equal to the minimum, they go left: p <= median
+				median = Math.nextUp(median);
+				nLeft = 0;
+				for (int i = 0; i < idx.length; i++) {
+					nLeft += (p[i] < median) ? 1 : 0;
+				}
+			}
+			int[] l;
+			int[] r;
+			if (nLeft == 0) {
+				// All projections are equal. Split in halves arbitrarily, queries go to both children.
+				l = Arrays.copyOfRange(idx, 0, idx.length / 2);
+				r = Arrays.copyOfRange(idx, idx.length / 2, idx.length);
+				median = Double.NaN;
+			} else {
+				l = new int[nLeft];
+				r = new int[idx.length - nLeft];
+				int il = 0;
+				int ir = 0;
+				for (int i = 0; i < idx.length; i++) {
+					if (p[i] < median) {
+						l[il++] = idx[i];
+					} else {
+						r[ir++] = idx[i];
+					}
+				}
+			}
+			a.set(node, pa);
+			b.set(node, pb);
+			threshold.set(node, median);
+			for (int j = 0; j < 2; j++) {
+				toSplit.add(j == 0 ? l : r);
+				a.add(-1);
+				b.add(-1);
+				threshold.add(0.0);
+				left.add(-1);
+				right.add(-1);
+				items.add(null);
+			}
+			left.set(node, toSplit.size() - 2);
+			right.set(node, toSplit.size() - 1);
+		}
+		int n = toSplit.size();
+		Tree tree = new Tree();
+		tree.a = new int[n];
+		tree.b = new int[n];
+		tree.threshold = new double[n];
+		tree.left = new int[n];
+		tree.right = new int[n];
+		tree.items = new int[n][];
+		for (int i = 0; i < n; i++) {
+			tree.a[i] = a.get(i);
+			tree.b[i] = b.get(i);
+			tree.threshold[i] = threshold.get(i);
+			tree.left[i] = left.get(i);
+			tree.right[i] = right.get(i);
+			tree.items[i] = items.get(i);
+		}
+		return tree;
+	}
+
+	/**
+	 * Leaves of the tree reached by the query: one leaf, or several leaves if
+	 * the query passes nodes with degenerate split.
+	 */
+	private void leaves(Tree tree, double[] q, ArrayList<int[]> result) {
+		int[] stack = new int[tree.items.length];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			while (tree.items[node] == null) {
+				if (Double.isNaN(tree.threshold[node])) {
+					// degenerate split (equal projections), the point can be in any child
+					stack[top++] = tree.right[node];
+					node = tree.left[node];
+				} else {
+					double p = projection(q, data[tree.a[node]], data[tree.b[node]]);
+					node = (p < tree.threshold[node]) ? tree.left[node] : tree.right[node];
+				}
+			}
+			result.add(tree.items[node]);
+		}
+	}
+
+	/**
+	 *
+	 * @param q query
+	 * @return sorted numbers of candidate points (union of leaves from all trees)
+	 */
+	private int[] candidates(double[] q) {
+		ArrayList<int[]> leaves = new ArrayList<int[]>();
+		for (int t = 0; t < trees.length; t++) {
+			leaves(trees[t], q, leaves);
+		}
+		int n = 0;
+		for (int[] leaf : leaves) {
+			n += leaf.length;
+		}
+		int[] all = new int[n];
+		int k = 0;
+		for (int[] leaf : leaves) {
+			System.arraycopy(leaf, 0, all, k, leaf.length);
+			k += leaf.length;
+		}
+		Arrays.sort(all);
+		int m = 0;
+		for (int i = 0; i < all.length; i++) {
+			if ((i == 0) || (all[i] != all[i - 1])) {
+				all[m++] = all[i];
+			}
+		}
+		return Arrays.copyOf(all, m);
+	}
+
+	@Override
+	public void range(double[] q, double radius, List<Neighbor<double[], double[]>> neighbors) {
+		if (radius <= 0.0) {
+			throw new RuntimeException("Invalid radius: " + radius);
+		}
+		double r2 = radius * radius;
+		for (int i : candidates(q)) {
+			if (data[i] == q) {
+				continue; // query itself is excluded like in smile KDTree
+			}
+			double d = squaredDistance(q, data[i]);
+			if (d <= r2) {
+				neighbors.add(new Neighbor<double[], double[]>(data[i], data[i], i, Math.sqrt(d)));
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Neighbor<double[], double[]>[] knn(double[] q, int k) {
+		if (k <= 0) {
+			throw new RuntimeException("Invalid k: " + k);
+		}
+		ArrayList<Neighbor<double[], double[]>> found = new ArrayList<Neighbor<double[], double[]>>();
+		for (int i : candidates(q)) {
+			if (data[i] == q) {
+				continue;
+			}
+			found.add(new Neighbor<double[], double[]>(data[i], data[i], i, Math.sqrt(squaredDistance(q, data[i]))));
+		}
+		found.sort(null);
+		int n = Math.min(k, found.size());
+		return found.subList(0, n).toArray((Neighbor<double[], double[]>[]) Array.newInstance(Neighbor.class, n));
+	}
+
+	public int size() {
+		return data.length;
+	}
+}
@@ -14,6 +14,7 @@ import com.thoughtworks.xstream.io.xml.StaxDriver;
 import ru.ac.phyche.ribyclusters.ArUtls;
 import ru.ac.phyche.ribyclusters.ChemDataset;
 import ru.ac.phyche.ribyclusters.ColumnFeatures;
+import ru.ac.phyche.ribyclusters.FeatureMatrix;
 import ru.ac.phyche.ribyclusters.featuregenerators.FeaturesGenerator;
 import smile.data.DataFrame;
 import smile.data.formula.Formula;
@@ -196,6 +197,56 @@ public class EnsembleRI extends ModelRI {
 		return result;
 	}
 
+	@Override
+	public double estimateTrainingCost(int trainSize, int validationSize) {
+		double result = 0;
+		for (int i = 0; i < models.length; i++) {
+			result += models[i].estimateTrainingCost(trainSize, validationSize);
+		}
+		return result;
+	}
+
+	@Override
+	public double estimateTrainingMemory(int trainSize, int validationSize, int nThreads) {
+		double result = 0;
+		for (int i = 0; i < models.length; i++) {
+			result = Math.max(result, models[i].estimateTrainingMemory(trainSize, validationSize, nThreads));
+		}
+		return result;
+	}
+
+	@Override
+	public long featuresTimeNanos() {
+		long result = 0;
+		for (int i = 0; i < models.length; i++) {
+			result += models[i].featuresTimeNanos();
+		}
+		return result;
+	}
+
+	@Override
+	public int numFits() {
+		int result = 0;
+		for (int i = 0; i < models.length; i++) {
+			result += models[i].numFits();
+		}
+		return result;
+	}
+
+	@Override
+	public void setSharedFeatures(FeatureMatrix features) {
+		for (int i = 0; i < models.length; i++) {
+			models[i].setSharedFeatures(features);
+		}
+	}
+
+	@Override
+	public void setNativeThreads(int nThreads) {
+		for (int i = 0; i < models.length; i++) {
+			models[i].setNativeThreads(nThreads);
+		}
+	}
+
 	@Override
 	public void setTuningOutFileOrDir(String filename) {
 		if (filename != null) {
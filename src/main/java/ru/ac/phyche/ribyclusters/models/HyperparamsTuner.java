@@ -0,0 +1,306 @@
+package ru.ac.phyche.ribyclusters.models;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import ru.ac.phyche.ribyclusters.ArUtls;
+
+/**
+ * Hyperparameters tuning for QSRRModelRI models: TPE (tree-structured Parzen
+ * estimator) proposals combined with successive halving on fractions of the
+ * training set. Hyperparameters are encoded as points of the unit hypercube,
+ * the model decodes them (decode function). Tuning runs in rounds. Each round
+ * proposes a batch of configurations (random ones until there are enough
+ * observations), evaluates all of them on a small fraction of the training
+ * set, then the best 1/eta of them on an eta times larger fraction and so on
+ * up to the full training set. Configurations of one rung can be evaluated in
+ * parallel. The number of attempts is the number of proposed configurations,
+ * the number of evaluations (trainings) is larger, see getEvaluations.
+ *
+ * @param <P> hyperparameters of the model
+ */
+public class HyperparamsTuner<P> {
+
+	/**
+	 * Training with given hyperparameters and validation.
+	 */
+	public interface Objective<P> {
+		/**
+		 *
+		 * @param params hyperparameters
+		 * @param rows   indices of training set entries that should be used for
+		 *               training (all entries in natural order for the full
+		 *               training set)
+		 * @return accuracy measures for the validation set (see
+		 *         ModelRI.accuracyMeasuresValidation), null if training failed
+		 */
+		String evaluate(P params, int[] rows);
+	}
+
+	private static final int eta = 3;
+	private static final int maxRungs = 3;
+	private static final int minRungTrainSize = 100;
+	private static final float goodFraction = 0.25f;
+	private static final float randomFraction = 0.3f;
+	private static final int candidates = 24;
+	private static final double minBandwidth = 0.02;
+
+	private static class Trial<P> {
+		double[] point;
+		P params;
+		float loss = Float.POSITIVE_INFINITY;
+		String accuracyMeasures = null;
+	}
+
+	private final int dimensions;
+	private final Function<double[], P> decode;
+	private final QSRRModelRI.AccuracyMeasure accuracyMeasure;
+	private final boolean parallel;
+	private final Random rnd = new Random();
+	private final ArrayList<ArrayList<Trial<P>>> observations = new ArrayList<ArrayList<Trial<P>>>();
+	private int evaluations = 0;
+
+	/**
+	 *
+	 * @param dimensions      number of hyperparameters
+	 * @param decode          hyperparameters from point of unit hypercube
+	 * @param accuracyMeasure loss
+	 * @param parallel        evaluate configurations of one rung in parallel
+	 *                        stream
+	 */
+	public HyperparamsTuner(int dimensions, Function<double[], P> decode,
+			QSRRModelRI.AccuracyMeasure accuracyMeasure, boolean parallel) {
+		this.dimensions = dimensions;
+		this.decode = decode;
+		this.accuracyMeasure = accuracyMeasure;
+		this.parallel = parallel;
+	}
+
+	/**
+	 *
+	 * @param attempts  number of configurations
+	 * @param trainSize size of the training set
+	 * @param objective training and validation
+	 * @param log       one line for each evaluation is written here (can be
+	 *                  null)
+	 * @param prefix    prefix of log lines
+	 * @return the best hyperparameters on the full training set, null if
+	 *         training failed for all configurations of the last rung (the
+	 *         failure is logged, callers keep their current hyperparameters)
+	 * @throws IOException io
+	 */
+	public P tune(int attempts, int trainSize, Objective<P> objective, FileWriter log, String prefix)
+			throws IOException {
+		int rungs = rungs(trainSize);
+		int[] order = ArUtls.intsrnd(trainSize);
+		int[][] rows = new int[rungs][];
+		for (int r = 0; r < rungs; r++) {
+			rows[r] = Arrays.copyOf(order, trainSize / (int) Math.pow(eta, rungs - 1 - r));
+			Arrays.sort(rows[r]);
+		}
+		observations.clear();
+		evaluations = 0;
+		for (int r = 0; r < rungs; r++) {
+			observations.add(new ArrayList<Trial<P>>());
+		}
+		int batch = batch(attempts, rungs);
+		int n = 0;
+		while (n < attempts) {
+			int b = Math.min(batch, attempts - n);
+			ArrayList<Trial<P>> current = new ArrayList<Trial<P>>();
+			for (int i = 0; i < b; i++) {
+				current.add(propose());
+			}
+			for (int r = 0; r < rungs; r++) {
+				evaluate(current, rows[r], r, objective);
+				if (log != null) {
+					for (Trial<P> t : current) {
+						log.write(prefix + " " + t.params.toString() + " trainSize: " + rows[r].length + " "
+								+ ((t.accuracyMeasures == null) ? "Training Failed" : t.accuracyMeasures) + "\n");
+					}
+					log.flush();
+				}
+				current.sort((t1, t2) -> Float.compare(t1.loss, t2.loss));
+				current = new ArrayList<Trial<P>>(current.subList(0, (int) Math.ceil(current.size() / (double) eta)));
+			}
+			n = n + b;
+		}
+		Trial<P> best = null;
+		for (Trial<P> t : observations.get(rungs - 1)) {
+			if ((best == null) || (t.loss < best.loss)) {
+				best = t;
+			}
+		}
+		if ((best == null) || (best.loss == Float.POSITIVE_INFINITY)) {
+			String message = prefix + " Hyperparameters tuning failed, current hyperparameters are used";
+			System.out.println(message);
+			if (log != null) {
+				log.write(message + "\n");
+				log.flush();
+			}
+			return null;
+		}
+		return best.params;
+	}
+
+	/**
+	 * 
+	 * @return number of evaluations of the objective in the last tune call
+	 *         (configurations of all batches on all rungs, including failed ones)
+	 */
+	public int getEvaluations() {
+		return evaluations;
+	}
+
+	/**
+	 * Number of evaluations of the objective that tune performs, the same
+	 * schedule as in tune.
+	 * 
+	 * @param attempts  number of configurations
+	 * @param trainSize size of the training set
+	 * @return number of evaluations
+	 */
+	public static int evaluations(int attempts, int trainSize) {
+		int rungs = rungs(trainSize);
+		int batch = batch(attempts, rungs);
+		int result = 0;
+		for (int n = 0; n < attempts; n = n + batch) {
+			int size = Math.min(batch, attempts - n);
+			for (int r = 0; r < rungs; r++) {
+				result = result + size;
+				size = (int) Math.ceil(size / (double) eta);
+			}
+		}
+		return result;
+	}
+
+	private static int rungs(int trainSize) {
+		int rungs = 1;
+		while ((rungs < maxRungs) && (trainSize / (int) Math.pow(eta, rungs) >= minRungTrainSize)) {
+			rungs++;
+		}
+		return rungs;
+	}
+
+	private static int batch(int attempts, int rungs) {
+		return Math.max((int) Math.pow(eta, rungs - 1), (int) Math.ceil(attempts / 4.0));
+	}
+
+	private void evaluate(ArrayList<Trial<P>> trials, int[] rows, int rung, Objective<P> objective) {
+		IntStream indices = IntStream.range(0, trials.size());
+		(parallel ? indices.parallel() : indices).forEach(i -> {
+			Trial<P> t = trials.get(i);
+			t.accuracyMeasures = objective.evaluate(t.params, rows);
+			float loss = (t.accuracyMeasures == null) ? Float.NaN
+					: QSRRModelRI.accuracy(accuracyMeasure, t.accuracyMeasures);
+			t.loss = Float.isNaN(loss) ? Float.POSITIVE_INFINITY : loss;
+		});
+		evaluations = evaluations + trials.size();
+		for (Trial<P> t : trials) {
+			Trial<P> observation = new Trial<P>();
+			observation.point = t.point;
+			observation.params = t.params;
+			observation.loss = t.loss;
+			observations.get(rung).add(observation);
+		}
+	}
+
+	/**
+	 * TPE proposal from observations of the highest rung with enough of them,
+	 * random point if there are no such rungs (and with randomFraction
+	 * probability).
+	 */
+	private Trial<P> propose() {
+		Trial<P> result = new Trial<P>();
+		result.point = new double[dimensions];
+		for (int j = 0; j < dimensions; j++) {
+			result.point[j] = rnd.nextDouble();
+		}
+		ArrayList<Trial<P>> obs = null;
+		for (ArrayList<Trial<P>> rungObservations : observations) {
+			if (rungObservations.size() >= dimensions + 2) {
+				obs = rungObservations;
+			}
+		}
+		if ((obs != null) && (rnd.nextDouble() >= randomFraction)) {
+			ArrayList<Trial<P>> sorted = new ArrayList<Trial<P>>(obs);
+			sorted.sort((t1, t2) -> Float.compare(t1.loss, t2.loss));
+			int nGood = Math.max(1, (int) Math.ceil(goodFraction * sorted.size()));
+			double[][] good = new double[nGood][];
+			double[][] bad = new double[sorted.size() - nGood][];
+			for (int i = 0; i < sorted.size(); i++) {
+				if (i < nGood) {
+					good[i] = sorted.get(i).point;
+				} else {
+					bad[i - nGood] = sorted.get(i).point;
+				}
+			}
+			double[] bwGood = bandwidths(good);
+			double[] bwBad = bandwidths(bad);
+			double bestScore = Double.NEGATIVE_INFINITY;
+			for (int c = 0; c < candidates; c++) {
+				double[] x = sample(good, bwGood);
+				double score = 0;
+				for (int j = 0; j < dimensions; j++) {
+					score += Math.log(density(x[j], good, j, bwGood[j])) - Math.log(density(x[j], bad, j, bwBad[j]));
+				}
+				if (score > bestScore) {
+					bestScore = score;
+					result.point = x;
+				}
+			}
+		}
+		result.params = decode.apply(result.point);
+		return result;
+	}
+
+	/**
+	 * Scott's rule bandwidths of Parzen estimator for each dimension.
+	 */
+	private double[] bandwidths(double[][] points) {
+		double[] result = new double[dimensions];
+		for (int j = 0; j < dimensions; j++) {
+			double mean = 0;
+			for (double[] p : points) {
+				mean += p[j] / points.length;
+			}
+			double variance = 0;
+			for (double[] p : points) {
+				variance += (p[j] - mean) * (p[j] - mean) / points.length;
+			}
+			double bw = 1.06 * Math.sqrt(variance) * Math.pow(points.length + 1, -0.2);
+			result[j] = Math.max(minBandwidth, Math.min(0.5, (points.length > 1) ? bw : 0.2));
+		}
+		return result;
+	}
+
+	/**
+	 * Parzen estimator with uniform prior (as one of points).
+	 */
+	private static double density(double x, double[][] points, int j, double bandwidth) {
+		double result = 1;
+		for (double[] p : points) {
+			double z = (x - p[j]) / bandwidth;
+			result += Math.exp(-0.5 * z * z) / (bandwidth * Math.sqrt(2 * Math.PI));
+		}
+		return result / (points.length + 1);
+	}
+
+	private double[] sample(double[][] points, double[] bandwidths) {
+		double[] result = new double[dimensions];
+		int k = rnd.nextInt(points.length + 1);
+		for (int j = 0; j < dimensions; j++) {
+			if (k == points.length) {
+				result[j] = rnd.nextDouble();
+			} else {
+				result[j] = Math.max(0, Math.min(1, points[k][j] + rnd.nextGaussian() * bandwidths[j]));
+			}
+		}
+		return result;
+	}
+}
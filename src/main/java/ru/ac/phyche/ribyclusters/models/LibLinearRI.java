@@ -7,7 +7,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.stream.IntStream;
 
 import de.bwaldvogel.liblinear.Feature;
 import de.bwaldvogel.liblinear.Linear;
@@ -24,7 +24,6 @@ public class LibLinearRI extends QSRRModelRI {
 
 	private static final float epsTolerance = 5E-3F;
 	private static final int maxIterations = 3000;
-	private static final int nThreadsHyperparamsTune = 128;
 	private static final QSRRModelRI.AccuracyMeasure accuracyMeasureTuning = QSRRModelRI.AccuracyMeasure.MDAE;
 	private static final float minC = 1E-6f;
 	private static final float maxC = 1E5f;
@@ -35,6 +34,7 @@ public class LibLinearRI extends QSRRModelRI {
 	private float c = 1.0f;
 	private float p = 0.1f;
 	private int solverType = 2;
+	private boolean regularizationPath = false;
 
 	public LibLinearRI(ColumnFeatures genCol, FeaturesGenerator gen) {
 		super(genCol, gen);
@@ -93,21 +93,6 @@ public class LibLinearRI extends QSRRModelRI {
 		return f;
 	}
 
-	private float[][] features(ChemDataset set) {
-		return features(set.allSmiles(), set.allColumns());
-	}
-
-	private float[][] features(String[] smiles, int[] columns) {
-		getGen().precompute(smiles);
-		float[][] features = getGen().features(smiles);
-		float[][] features1 = new float[features.length][];
-		float[][] columnsFeatures = getGenCol().columnFeatures(columns);
-		for (int i = 0; i < features.length; i++) {
-			features1[i] = ArUtls.mergeArrays(columnsFeatures[i], features[i]);
-		}
-		return features1;
-	}
-
 	private Feature[][] datasetToFeaturesLibLinear(String[] smiles, int[] columns) {
 		float[][] features1 = features(smiles, columns);
 		Feature[][] f = ArUtls.toLibLinearFormat(features1);
@@ -119,11 +104,16 @@ public class LibLinearRI extends QSRRModelRI {
 		float p;
 		int st;
 
-		public static Param rnd() {
+		/**
+		 * 
+		 * @param u point of unit cube (C, p, solver type)
+		 * @return hyperparameters
+		 */
+		public static Param fromUnit(double[] u) {
 			Param result = new Param();
-			result.c = (float) Math.pow(10, Math.log10(minC) + Math.random() * (Math.log10(maxC) - Math.log10(minC)));
-			result.p = (float) Math.pow(10, Math.log10(minp) + Math.random() * (Math.log10(maxp) - Math.log10(minp)));
-			result.st = (int) Math.round(Math.random() * 3 - 0.5);
+			result.c = (float) Math.pow(10, Math.log10(minC) + u[0] * (Math.log10(maxC) - Math.log10(minC)));
+			result.p = (float) Math.pow(10, Math.log10(minp) + u[1] * (Math.log10(maxp) - Math.log10(minp)));
+			result.st = Math.min(2, (int) (u[2] * 3));
 			return result;
 		}
 
@@ -133,60 +123,113 @@ public class LibLinearRI extends QSRRModelRI {
 		}
 	}
 
+	/**
+	 * If enabled, hyperparameters tuning uses a grid of about
+	 * getHyperparamsTuneAttempts() (C, p) pairs with the primal L2R_L2LOSS_SVR
+	 * solver (the only SVR solver of LIBLINEAR that accepts initial solution).
+	 * For each p, C values are sorted ascending and each solve starts from the
+	 * solution for the previous C. Paths for different p are computed in
+	 * parallel. Disabled by default.
+	 * 
+	 * @param regularizationPath true to enable
+	 */
+	public void setRegularizationPath(boolean regularizationPath) {
+		this.regularizationPath = regularizationPath;
+	}
+
+	private static double grid(int i, int n) {
+		return (n == 1) ? 0.5 : i / (n - 1.0);
+	}
+
+	/**
+	 * Tuning along regularization paths, see setRegularizationPath.
+	 */
+	private Param tunePath(Problem pr, Feature[][] featuresVal, float[] labelsCorrect) throws IOException {
+		int nP = Math.max(1, (int) Math.round(Math.sqrt(getHyperparamsTuneAttempts() / 4.0)));
+		int nC = (int) Math.ceil(getHyperparamsTuneAttempts() / (double) nP);
+		setTuningEvaluations(nP * nC);
+		Param[][] params = new Param[nP][nC];
+		String[][] accuracyMeasures = new String[nP][nC];
+		IntStream.range(0, nP).parallel().forEach(i -> {
+			double[] w = null;
+			for (int j = 0; j < nC; j++) {
+				Param p = Param.fromUnit(new double[] { grid(j, nC), grid(i, nP), 0.5 }); // solver 1 (primal)
+				Parameter parameter = new Parameter(st(p.st), p.c, epsTolerance, maxIterations, p.p);
+				if (w != null) {
+					parameter.setInitSol(w);
+				}
+				Model mdl1 = Linear.train(pr, parameter);
+				w = mdl1.getFeatureWeights().clone();
+				float[] predictions = new float[featuresVal.length];
+				for (int k = 0; k < predictions.length; k++) {
+					predictions[k] = (float) Linear.predict(mdl1, featuresVal[k]) * 1000;
+				}
+				params[i][j] = p;
+				accuracyMeasures[i][j] = QSRRModelRI.accuracyMeasuresValidation(predictions, labelsCorrect);
+			}
+		});
+		FileWriter fw = null;
+		if (getHyperparamsTuneFile() != null) {
+			fw = new FileWriter(getHyperparamsTuneFile());
+		}
+		float bestAccuracy = Float.MAX_VALUE;
+		Param bestParams = null;
+		for (int i = 0; i < nP; i++) {
+			for (int j = 0; j < nC; j++) {
+				float accuracy = QSRRModelRI.accuracy(accuracyMeasureTuning, accuracyMeasures[i][j]);
+				if (accuracy < bestAccuracy) {
+					bestAccuracy = accuracy;
+					bestParams = params[i][j];
+				}
+				if (fw != null) {
+					fw.write(modelType() + " " + params[i][j].toString() + " " + accuracyMeasures[i][j] + "\n");
+				}
+			}
+		}
+		if (fw != null) {
+			fw.close();
+		}
+		return bestParams;
+	}
+
+	private static Problem subproblem(Problem pr, int[] rows) {
+		if (rows.length == pr.l) {
+			return pr;
+		}
+		Problem result = new Problem();
+		result.x = new Feature[rows.length][];
+		result.y = new double[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			result.x[i] = pr.x[rows[i]];
+			result.y[i] = pr.y[rows[i]];
+		}
+		result.l = rows.length;
+		result.n = pr.n;
+		return result;
+	}
+
 	@Override
 	public void train(ChemDataset trainSet, ChemDataset validationSet) {
 		Problem pr = datasetToProblem(trainSet);
 		if (this.isHyperparamsTune()) {
 			try {
-				int n = 0;
 				Feature[][] featuresVal = datasetToFeaturesLibLinear(validationSet);
-				float bestAccuracy = Float.MAX_VALUE;
-				Param bestParams = null;
-				String[] smiles = validationSet.allSmiles();
-
 				float[] labelsCorrect = validationSet.allRetentions();
-				FileWriter fw = null;
-				if (getHyperparamsTuneFile() != null) {
-					fw = new FileWriter(getHyperparamsTuneFile());
-				}
-				while (n < getHyperparamsTuneAttempts()) {
-					int x = Math.min(getHyperparamsTuneAttempts() - n, nThreadsHyperparamsTune);
-					float[][] predictionsVal = new float[x][];
-					Param[] params = new Param[x];
-					Arrays.stream(ArUtls.intsrnd(x)).parallel().forEach(i -> {
-						Param p = Param.rnd();
-						Parameter parameter = new Parameter(st(p.st), p.c, epsTolerance, maxIterations, p.p);
-						Model mdl1 = Linear.train(pr, parameter);
-						float[] predictions = new float[featuresVal.length];
-						for (int k = 0; k < predictions.length; k++) {
-							predictions[k] = (float) Linear.predict(mdl1, featuresVal[k]) * 1000;
-						}
-						predictionsVal[i] = predictions;
-						params[i] = p;
-					});
-					for (int i = 0; i < x; i++) {
-						String accuracyMeasures = QSRRModelRI.accuracyMeasuresValidation(smiles, predictionsVal[i],
-								labelsCorrect, false, null);
-						float accuracy = QSRRModelRI.accuracy(accuracyMeasureTuning, accuracyMeasures);
-						if (accuracy < bestAccuracy) {
-							bestAccuracy = accuracy;
-							bestParams = params[i];
-						}
-						if (fw != null) {
-							fw.write(modelType() + " " + params[i].toString() + " " + accuracyMeasures + "\n");
-						}
-					}
-					if (fw != null) {
-						fw.flush();
-					}
-					n = n + x;
-				}
-				if (fw != null) {
-					fw.close();
+				Param bestParams = regularizationPath ? tunePath(pr, featuresVal, labelsCorrect)
+						: tuneHyperparams(3, Param::fromUnit, pr.l, true, accuracyMeasureTuning, (p, rows) -> {
+							Parameter parameter = new Parameter(st(p.st), p.c, epsTolerance, maxIterations, p.p);
+							Model mdl1 = Linear.train(subproblem(pr, rows), parameter);
+							float[] predictions = new float[featuresVal.length];
+							for (int k = 0; k < predictions.length; k++) {
+								predictions[k] = (float) Linear.predict(mdl1, featuresVal[k]) * 1000;
+							}
+							return QSRRModelRI.accuracyMeasuresValidation(predictions, labelsCorrect);
+						});
+				if (bestParams != null) {
+					c = bestParams.c;
+					p = bestParams.p;
+					solverType = bestParams.st;
 				}
-				c = bestParams.c;
-				p = bestParams.p;
-				solverType = bestParams.st;
 			} catch (IOException e) {
 				e.printStackTrace();
 				throw new RuntimeException(e.getMessage());
@@ -237,6 +280,26 @@ public class LibLinearRI extends QSRRModelRI {
 		mdl = Model.load(f.toPath());
 	}
 
+	@Override
+	public double estimateTrainingCost(int trainSize, int validationSize) {
+		return numFits(trainSize) * 100.0 * trainSize * numFeatures(); // ~100 iterations of coordinate descent
+	}
+
+	@Override
+	protected int numFits(int trainSize) {
+		if (isHyperparamsTune() && regularizationPath) {
+			int nP = Math.max(1, (int) Math.round(Math.sqrt(getHyperparamsTuneAttempts() / 4.0)));
+			return nP * (int) Math.ceil(getHyperparamsTuneAttempts() / (double) nP) + 1;
+		}
+		return super.numFits(trainSize);
+	}
+
+	@Override
+	public double estimateTrainingMemory(int trainSize, int validationSize, int nThreads) {
+		double parallelFits = isHyperparamsTune() ? Math.min(nThreads, getHyperparamsTuneAttempts()) : 1;
+		return 32.0 * numFeatures() * (trainSize + validationSize) + parallelFits * 8.0 * numFeatures();
+	}
+
 	@Override
 	public String modelType() {
 		return "LIBLINEAR";
@@ -254,6 +317,7 @@ public class LibLinearRI extends QSRRModelRI {
 		result.c = this.c;
 		result.p = this.p;
 		result.solverType = this.solverType;
+		result.regularizationPath = this.regularizationPath;
 		return result;
 	}
 
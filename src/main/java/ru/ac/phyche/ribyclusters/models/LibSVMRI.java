@@ -7,7 +7,12 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 import libsvm.svm;
 import libsvm.svm_model;
@@ -22,7 +27,6 @@ import ru.ac.phyche.ribyclusters.featuregenerators.FeaturesGenerator;
 public class LibSVMRI extends QSRRModelRI {
 
 	private static final float epsTolerance = 1E-3F;
-	private static final int nThreadsHyperparamsTune = 128;
 	private static final float memCacheSizeMB = 256 * 1024;
 	private static final QSRRModelRI.AccuracyMeasure accuracyMeasureTuning = QSRRModelRI.AccuracyMeasure.MDAE;
 	private static final float minC = 1E-6f;
@@ -32,12 +36,17 @@ public class LibSVMRI extends QSRRModelRI {
 	private static final float minGamma = 7E-5f;
 	private static final float maxGamma = 0.2f;
 	private static final int maxNumberEntriesSVR = 12000;
+	private static final int kernelLevels = 65536; // quantization of precomputed kernel values in [0, 1]
+	private static final int maxCachedKernels = 2;
+	private static final int gammaGridPerDecade = 4; // gamma values for precomputed kernels
 
 	private svm_model mdl = null;
+	private RBFSupportVectors supportVectors = null; // dense copy of mdl used for prediction
 	private float c = 1.0f;
 	private float nu = 0.5f;
 	private float gamma = 0.003f;
 	private boolean shrinking = false;
+	private boolean precomputedKernelTuning = false;
 
 	public LibSVMRI(ColumnFeatures genCol, FeaturesGenerator gen) {
 		super(genCol, gen);
@@ -63,47 +72,161 @@ public class LibSVMRI extends QSRRModelRI {
 		this.shrinking = shrinking;
 	}
 
-	@Override
-	public float[] predict(String[] smiles, int[] columns) {
-		svm_node[][] f = datasetToFeaturesLibSVM(smiles, columns);
-		float[] result = new float[smiles.length];
-		for (int i = 0; i < result.length; i++) {
-			result[i] = (float) svm.svm_predict(mdl, f[i]) * 1000;
-		}
-		return result;
+	/**
+	 * If enabled, squared distances between training entries (and between
+	 * validation and training entries) are computed once for hyperparameters
+	 * tuning. Kernel for each gamma is derived from them and LIBSVM precomputed
+	 * kernel is used. Note that this changes the search space of tuning: gamma
+	 * is rounded to a grid of gammaGridPerDecade (4) values per decade, so that
+	 * kernels are reused by different configurations, and the final model uses
+	 * the rounded gamma. At most maxCachedKernels kernels exist at once (trials
+	 * that need another kernel wait). Kernel values are quantized to
+	 * kernelLevels levels (error below 1E-5), rows of kernel matrix refer to
+	 * shared LIBSVM nodes (4 bytes per entry with compressed references), so all
+	 * training sets up to maxNumberEntriesSVR entries are supported. The final
+	 * model uses RBF kernel as usual. Disabled by default.
+	 * 
+	 * @param precomputedKernelTuning true to enable
+	 */
+	public void setPrecomputedKernelTuning(boolean precomputedKernelTuning) {
+		this.precomputedKernelTuning = precomputedKernelTuning;
 	}
 
-	private svm_problem datasetToProblem(ChemDataset set) {
-		float[][] features1 = features(set);
-		svm_problem pr = ArUtls.toLibSVMFormat(features1, ArUtls.mult(0.001f, set.allRetentions()));
-		return pr;
-	}
+	/**
+	 * Squared distances and RBF kernels for LIBSVM precomputed kernel. Node 0 of
+	 * each row of kernel is the number of row (1-based), node j is the kernel
+	 * value for training entry j. Nodes j > 0 are shared: node j refers to the
+	 * node of the pool with the nearest of kernelLevels + 1 values (LIBSVM reads
+	 * only values of precomputed kernel nodes). Kernels are acquired for training and released
+	 * after it. At most maxCachedKernels kernels (in use, being built, or cached
+	 * for reuse) exist at once: unused kernels are evicted in LRU order, if all of
+	 * them are in use, acquire waits.
+	 */
+	private static class PrecomputedKernels {
+		private final int n;
+		private final float[] trainDistances; // n x n
+		private final float[] validationDistances; // validation size x n
+		private final LinkedHashMap<Float, svm_node[][]> kernels = new LinkedHashMap<Float, svm_node[][]>(16,
+				0.75f, true);
+		private final HashMap<Float, Integer> users = new HashMap<Float, Integer>();
+		private final HashSet<Float> building = new HashSet<Float>();
+		private final svm_node[] levels = new svm_node[kernelLevels + 1];
 
-	private svm_node[][] datasetToFeaturesLibLinear(ChemDataset set) {
-		float[][] features1 = features(set);
-		svm_node[][] f = ArUtls.toLibSVMFormat(features1);
-		return f;
-	}
+		PrecomputedKernels(float[][] train, float[][] validation) {
+			n = train.length;
+			for (int q = 0; q <= kernelLevels; q++) {
+				levels[q] = new svm_node();
+				levels[q].index = q;
+				levels[q].value = q / (double) kernelLevels;
+			}
+			trainDistances = ArUtls.squaredDistances(train, train);
+			validationDistances = ArUtls.squaredDistances(validation, train);
+		}
 
-	private float[][] features(ChemDataset set) {
-		return features(set.allSmiles(), set.allColumns());
-	}
+		private svm_node[][] acquire(float gamma) {
+			synchronized (kernels) {
+				while (true) {
+					svm_node[][] k = kernels.get(gamma);
+					if (k != null) {
+						users.put(gamma, users.getOrDefault(gamma, 0) + 1);
+						return k;
+					}
+					if (!building.contains(gamma)) {
+						Iterator<Float> it = kernels.keySet().iterator();
+						while (it.hasNext() && (kernels.size() + building.size() >= maxCachedKernels)) {
+							if (!users.containsKey(it.next())) {
+								it.remove();
+							}
+						}
+						if (kernels.size() + building.size() < maxCachedKernels) {
+							building.add(gamma);
+							break;
+						}
+					}
+					try {
+						kernels.wait();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+						throw new RuntimeException(e.getMessage());
+					}
+				}
+			}
+			svm_node[][] k = new svm_node[n][n + 1];
+			boolean built = false;
+			try {
+				IntStream.range(0, n).parallel().forEach(i -> {
+					k[i][0] = new svm_node();
+					k[i][0].index = 0;
+					k[i][0].value = i + 1;
+					for (int j = 0; j < n; j++) {
+						double v = Math.exp(-gamma * trainDistances[i * n + j]);
+						k[i][j + 1] = levels[(int) Math.round(v * kernelLevels)];
+					}
+				});
+				built = true;
+			} finally {
+				synchronized (kernels) {
+					building.remove(gamma);
+					if (built) {
+						kernels.put(gamma, k);
+						users.put(gamma, 1);
+					}
+					kernels.notifyAll();
+				}
+			}
+			return k;
+		}
+
+		void release(float gamma) {
+			synchronized (kernels) {
+				int u = users.get(gamma) - 1;
+				if (u == 0) {
+					users.remove(gamma);
+				} else {
+					users.put(gamma, u);
+				}
+				kernels.notifyAll();
+			}
+		}
+
+		/**
+		 * The kernel is acquired, release(gamma) must be called after training.
+		 */
+		svm_problem problem(svm_problem pr, int[] rows, float gamma) {
+			svm_node[][] k = acquire(gamma);
+			svm_problem result = new svm_problem();
+			result.x = new svm_node[rows.length][];
+			result.y = new double[rows.length];
+			for (int i = 0; i < rows.length; i++) {
+				result.x[i] = k[rows[i]];
+				result.y[i] = pr.y[rows[i]];
+			}
+			result.l = rows.length;
+			return result;
+		}
 
-	private float[][] features(String[] smiles, int[] columns) {
-		getGen().precompute(smiles);
-		float[][] features = getGen().features(smiles);
-		float[][] features1 = new float[features.length][];
-		float[][] columnsFeatures = getGenCol().columnFeatures(columns);
-		for (int i = 0; i < features.length; i++) {
-			features1[i] = ArUtls.mergeArrays(columnsFeatures[i], features[i]);
+		/**
+		 * Predictions for validation set (NU_SVR decision function from
+		 * distances).
+		 */
+		float[] predictValidation(svm_model m, float gamma) {
+			int nValidation = validationDistances.length / n;
+			float[] result = new float[nValidation];
+			for (int q = 0; q < nValidation; q++) {
+				double sum = 0;
+				for (int s = 0; s < m.l; s++) {
+					int j = (int) m.SV[s][0].value - 1;
+					sum += m.sv_coef[0][s] * Math.exp(-gamma * validationDistances[q * n + j]);
+				}
+				result[q] = (float) (sum - m.rho[0]);
+			}
+			return result;
 		}
-		return features1;
 	}
 
-	private svm_node[][] datasetToFeaturesLibSVM(String[] smiles, int[] columns) {
-		float[][] features1 = features(smiles, columns);
-		svm_node[][] f = ArUtls.toLibSVMFormat(features1);
-		return f;
+	@Override
+	public float[] predict(String[] smiles, int[] columns) {
+		return ArUtls.mult(1000, supportVectors.predict(features(smiles, columns)));
 	}
 
 	private static class Param {
@@ -112,21 +235,45 @@ public class LibSVMRI extends QSRRModelRI {
 		float gamma;
 		boolean shrinking;
 
-		private static float randomGamma(int nFeatures) {
-			if (Math.random() > 0.5) {
+		private static float gamma(double u, int nFeatures) {
+			if (u < 0.5) {
 				return 1.0f / ((float) nFeatures);
 			} else {
 				return (float) Math.pow(10,
-						Math.log10(minGamma) + Math.random() * (Math.log10(maxGamma) - Math.log10(minGamma)));
+						Math.log10(minGamma) + (2 * u - 1) * (Math.log10(maxGamma) - Math.log10(minGamma)));
 			}
 		}
 
-		public static Param rnd(int nFeatures) {
+		/**
+		 * 
+		 * @param u         point of unit cube (C, gamma, nu, shrinking), gamma is
+		 *                  1/nFeatures for the lower half of its range
+		 * @param nFeatures number of features
+		 * @return hyperparameters
+		 */
+		public static Param fromUnit(double[] u, int nFeatures) {
 			Param result = new Param();
-			result.c = (float) Math.pow(10, Math.log10(minC) + Math.random() * (Math.log10(maxC) - Math.log10(minC)));
-			result.gamma = randomGamma(nFeatures);
-			result.nu = (float) (minNu + Math.random() * (maxNu - minNu));
-			result.shrinking = Math.random() > 0.5;
+			result.c = (float) Math.pow(10, Math.log10(minC) + u[0] * (Math.log10(maxC) - Math.log10(minC)));
+			result.gamma = gamma(u[1], nFeatures);
+			result.nu = (float) (minNu + u[2] * (maxNu - minNu));
+			result.shrinking = u[3] > 0.5;
+			return result;
+		}
+
+		/**
+		 * 
+		 * @param u         point of unit cube, see fromUnit
+		 * @param nFeatures number of features
+		 * @return hyperparameters, gamma is rounded to gammaGridPerDecade values
+		 *         per decade
+		 */
+		public static Param fromUnitGammaGrid(double[] u, int nFeatures) {
+			Param result = fromUnit(u, nFeatures);
+			if (u[1] >= 0.5) {
+				double steps = Math.min(Math.round((Math.log10(result.gamma) - Math.log10(minGamma)) * gammaGridPerDecade),
+						Math.floor((Math.log10(maxGamma) - Math.log10(minGamma)) * gammaGridPerDecade));
+				result.gamma = (float) Math.pow(10, Math.log10(minGamma) + steps / gammaGridPerDecade);
+			}
 			return result;
 		}
 
@@ -150,6 +297,58 @@ public class LibSVMRI extends QSRRModelRI {
 		return params;
 	}
 
+	private static svm_problem subproblem(svm_problem pr, int[] rows) {
+		if (rows.length == pr.l) {
+			return pr;
+		}
+		svm_problem result = new svm_problem();
+		result.x = new svm_node[rows.length][];
+		result.y = new double[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			result.x[i] = pr.x[rows[i]];
+			result.y[i] = pr.y[rows[i]];
+		}
+		result.l = rows.length;
+		return result;
+	}
+
+	/**
+	 * Hyperparameters tuning. Precomputed kernels (if any) are released when it
+	 * returns.
+	 */
+	private Param tune(float[][] trainFeatures, svm_problem pr, ChemDataset validationSet) throws IOException {
+		float[][] validationFeatures = features(validationSet);
+		float[] labelsCorrect = validationSet.allRetentions();
+		int nFeatures = getGen().getNumFeatures();
+		PrecomputedKernels kernels = precomputedKernelTuning
+				? new PrecomputedKernels(trainFeatures, validationFeatures)
+				: null;
+		Function<double[], Param> decode = (kernels != null) ? u -> Param.fromUnitGammaGrid(u, nFeatures)
+				: u -> Param.fromUnit(u, nFeatures);
+		return tuneHyperparams(4, decode, pr.l, true, accuracyMeasureTuning,
+				(p, rows) -> {
+					float[] predictions;
+					if (kernels != null) {
+						svm_parameter parameter = prms(p);
+						parameter.kernel_type = svm_parameter.PRECOMPUTED;
+						svm_problem problem = kernels.problem(pr, rows, p.gamma);
+						svm_model mdl1;
+						try {
+							mdl1 = svm.svm_train(problem, parameter);
+						} finally {
+							kernels.release(p.gamma);
+						}
+						predictions = ArUtls.mult(1000, kernels.predictValidation(mdl1, p.gamma));
+					} else {
+						svm_model mdl1 = svm.svm_train(subproblem(pr, rows), prms(p));
+						predictions = ArUtls.mult(1000, new RBFSupportVectors(mdl1).predict(validationFeatures));
+					}
+					String accuracyMeasures = QSRRModelRI.accuracyMeasuresValidation(predictions, labelsCorrect);
+					System.out.println(accuracyMeasures);
+					return accuracyMeasures;
+				});
+	}
+
 	@Override
 	public void train(ChemDataset trainSet, ChemDataset validationSet) {
 		ChemDataset train = trainSet;
@@ -157,57 +356,17 @@ public class LibSVMRI extends QSRRModelRI {
 			ChemDataset train1 = train.copy().shuffle();
 			train = train1.simpleShuffleSplit(maxNumberEntriesSVR);
 		}
-		svm_problem pr = datasetToProblem(train);
+		float[][] trainFeatures = features(train);
+		svm_problem pr = ArUtls.toLibSVMFormat(trainFeatures, ArUtls.mult(0.001f, train.allRetentions()));
 		if (isHyperparamsTune()) {
 			try {
-				int n = 0;
-				svm_node[][] featuresVal = datasetToFeaturesLibLinear(validationSet);
-				float bestAccuracy = Float.MAX_VALUE;
-				Param bestParams = null;
-
-				float[] labelsCorrect = validationSet.allRetentions();
-				FileWriter fw = null;
-				if (getHyperparamsTuneFile() != null) {
-					fw = new FileWriter(getHyperparamsTuneFile());
-				}
-				while (n < getHyperparamsTuneAttempts()) {
-					int x = Math.min(getHyperparamsTuneAttempts() - n, nThreadsHyperparamsTune);
-					String[] accuracyMeasures = new String[x];
-					Param[] params = new Param[x];
-					Arrays.stream(ArUtls.intsrnd(x)).parallel().forEach(i -> {
-						Param p = Param.rnd(getGen().getNumFeatures());
-						svm_parameter parameter = prms(p);
-						svm_model mdl1 = svm.svm_train(pr, parameter);
-						float[] predictions = new float[featuresVal.length];
-						for (int k = 0; k < predictions.length; k++) {
-							predictions[k] = (float) svm.svm_predict(mdl1, featuresVal[k]) * 1000;
-						}
-						accuracyMeasures[i] = QSRRModelRI.accuracyMeasuresValidation(predictions, labelsCorrect);
-						System.out.println(accuracyMeasures[i]);
-						params[i] = p;
-					});
-					for (int i = 0; i < x; i++) {
-						float accuracy = QSRRModelRI.accuracy(accuracyMeasureTuning, accuracyMeasures[i]);
-						if (accuracy < bestAccuracy) {
-							bestAccuracy = accuracy;
-							bestParams = params[i];
-						}
-						if (fw != null) {
-							fw.write(modelType() + " " + params[i].toString() + " " + accuracyMeasures[i] + "\n");
-						}
-					}
-					if (fw != null) {
-						fw.flush();
-					}
-					n = n + x;
+				Param bestParams = tune(trainFeatures, pr, validationSet);
+				if (bestParams != null) {
+					c = bestParams.c;
+					nu = bestParams.nu;
+					gamma = bestParams.gamma;
+					shrinking = bestParams.shrinking;
 				}
-				if (fw != null) {
-					fw.close();
-				}
-				c = bestParams.c;
-				nu = bestParams.nu;
-				gamma = bestParams.gamma;
-				shrinking = bestParams.shrinking;
 			} catch (IOException e) {
 				e.printStackTrace();
 				throw new RuntimeException(e.getMessage());
@@ -220,6 +379,7 @@ public class LibSVMRI extends QSRRModelRI {
 		p.shrinking = shrinking;
 		svm_parameter params = prms(p);
 		mdl = svm.svm_train(pr, params);
+		supportVectors = new RBFSupportVectors(mdl);
 	}
 
 	@Override
@@ -262,6 +422,25 @@ public class LibSVMRI extends QSRRModelRI {
 		this.shrinking = Integer.parseInt(split[3]) > 0.5f;
 		File f = new File(directory, "model.txt");
 		mdl = svm.svm_load_model(f.getAbsolutePath());
+		supportVectors = new RBFSupportVectors(mdl);
+	}
+
+	@Override
+	public double estimateTrainingCost(int trainSize, int validationSize) {
+		double n = Math.min(trainSize, maxNumberEntriesSVR);
+		return numFits(trainSize) * 100 * n * n * numFeatures(); // kernel evaluations in solver iterations dominate
+	}
+
+	@Override
+	public double estimateTrainingMemory(int trainSize, int validationSize, int nThreads) {
+		double n = Math.min(trainSize, maxNumberEntriesSVR);
+		double parallelFits = isHyperparamsTune() ? Math.min(nThreads, getHyperparamsTuneAttempts()) : 1;
+		double kernelCache = Math.min(4 * n * n, memCacheSizeMB * 1024.0 * 1024.0);
+		double precomputed = 0;
+		if (isHyperparamsTune() && precomputedKernelTuning) {
+			precomputed = 4 * n * (n + validationSize) + maxCachedKernels * 4 * n * n;
+		}
+		return 32.0 * numFeatures() * (n + validationSize) + parallelFits * kernelCache + precomputed;
 	}
 
 	@Override
@@ -282,6 +461,7 @@ public class LibSVMRI extends QSRRModelRI {
 		result.nu = this.nu;
 		result.gamma = this.gamma;
 		result.shrinking = this.shrinking;
+		result.precomputedKernelTuning = this.precomputedKernelTuning;
 		return result;
 	}
 }
\ No newline at end of file
@@ -11,6 +11,7 @@ import org.openscience.cdk.exception.CDKException;
 
 import ru.ac.phyche.ribyclusters.ArUtls;
 import ru.ac.phyche.ribyclusters.ChemDataset;
+import ru.ac.phyche.ribyclusters.FeatureMatrix;
 import ru.ac.phyche.ribyclusters.models.QSRRModelRI.AccuracyMeasure;
 
 public abstract class ModelRI {
@@ -29,6 +30,77 @@ public abstract class ModelRI {
 	public abstract ModelRI createSimilar();
 
 	public abstract void setTuningOutFileOrDir(String filename);
+
+	/**
+	 * Limit the number of threads created by native libraries (XGBoost). Java
+	 * parallel streams are limited by the ForkJoinPool in which the model is
+	 * trained. Default implementation does nothing.
+	 * 
+	 * @param nThreads number of threads, 0 - library default
+	 */
+	public void setNativeThreads(int nThreads) {
+
+	}
+
+	/**
+	 * Use features computed once for several models (e.g. for all clusters).
+	 * Default implementation does nothing.
+	 * 
+	 * @param features shared features, null to compute features again
+	 */
+	public void setSharedFeatures(FeatureMatrix features) {
+
+	}
+
+	/**
+	 * Total time spent by the model in computation of features (used for
+	 * training metrics). Default: 0, not tracked.
+	 * 
+	 * @return time, nanoseconds
+	 */
+	public long featuresTimeNanos() {
+		return 0;
+	}
+
+	/**
+	 * 
+	 * @return number of models trained in the train method (tuning attempts and
+	 *         final model)
+	 */
+	public int numFits() {
+		return 1;
+	}
+
+	/**
+	 * Rough estimate of the training cost (number of floating point operations,
+	 * including hyperparameters tuning). Used only for scheduling and for
+	 * estimation of training time. Default (for models without own estimate):
+	 * linear in the data set size, 1E6 operations per entry, i.e. about 1000
+	 * features times 1000 passes, the order of an iterative linear model with
+	 * tuning. Only ratios of costs of clusters matter for scheduling.
+	 * 
+	 * @param trainSize      training set size
+	 * @param validationSize validation set size
+	 * @return estimated number of operations
+	 */
+	public double estimateTrainingCost(int trainSize, int validationSize) {
+		return 1E6 * (trainSize + validationSize);
+	}
+
+	/**
+	 * Rough estimate of memory required for training. Default (for models
+	 * without own estimate): 1E4 bytes per entry, i.e. a row of about 1000 float
+	 * features with a few copies (features, scaled or native copy).
+	 * 
+	 * @param trainSize      training set size
+	 * @param validationSize validation set size
+	 * @param nThreads       threads available for the model (parallel tuning
+	 *                       trials hold their own data)
+	 * @return estimated memory, bytes
+	 */
+	public double estimateTrainingMemory(int trainSize, int validationSize, int nThreads) {
+		return 1E4 * (trainSize + validationSize);
+	}
 	
 	public float[] predict(ChemDataset data) {
 		return predict(ChemDataset.smilesFromChemDataset(data), ChemDataset.columnsFromChemDataset(data));
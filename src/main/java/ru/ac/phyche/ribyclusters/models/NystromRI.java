@@ -0,0 +1,361 @@
+package ru.ac.phyche.ribyclusters.models;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+import ru.ac.phyche.ribyclusters.ArUtls;
+import ru.ac.phyche.ribyclusters.ChemDataset;
+import ru.ac.phyche.ribyclusters.ColumnFeatures;
+import ru.ac.phyche.ribyclusters.featuregenerators.FeaturesGenerator;
+import smile.math.blas.UPLO;
+import smile.math.matrix.Matrix;
+
+/**
+ * Approximate RBF kernel ridge regression: Nystrom features for random
+ * landmarks (training set entries) and ridge regression (see RidgePath) on
+ * them. Unlike LibSVMRI, the whole training set is used, training cost is
+ * linear in its size. The final model is sum_l alpha_l*exp(-gamma*|x-l|^2) +
+ * intercept over landmarks.
+ */
+public class NystromRI extends QSRRModelRI {
+	private static final QSRRModelRI.AccuracyMeasure accuracyMeasureTuning = QSRRModelRI.AccuracyMeasure.MDAE;
+	private static final float[] gammaRange = new float[] { 7E-5f, 0.2f };
+	private static final float[] l2Range = new float[] { 1E-9f, 1E5f };
+	private static final int l2PathLength = 30; // l2 values checked for each gamma during tuning
+	private static final int rowsBlock = 1024;
+
+	private int numLandmarks = 500;
+	private float gamma = 0.003f;
+	private float l2 = 0.001f;
+	private float[][] landmarks = null;
+	private double[] alpha = null;
+	private double intercept = 0;
+	private RBFSupportVectors predictor = null;
+
+	public NystromRI(ColumnFeatures genCol, FeaturesGenerator gen) {
+		super(genCol, gen);
+	}
+
+	public NystromRI(ColumnFeatures genCol, FeaturesGenerator gen, boolean hyperparamsTune,
+			String hyperparamsTuneFile, int hyperparamsTuneAttempts) {
+		super(genCol, gen, hyperparamsTune, hyperparamsTuneFile, hyperparamsTuneAttempts);
+	}
+
+	public NystromRI(ColumnFeatures genCol, FeaturesGenerator gen, float gamma, float l2) {
+		super(genCol, gen);
+		this.gamma = gamma;
+		this.l2 = l2;
+	}
+
+	/**
+	 * Number of landmarks (500 by default). Training time grows as its square,
+	 * memory linearly.
+	 *
+	 * @param numLandmarks number of landmarks
+	 */
+	public void setNumLandmarks(int numLandmarks) {
+		this.numLandmarks = numLandmarks;
+	}
+
+	/**
+	 * Nystrom features phi(x) = k(x, L)*U*diag(1/sqrt(e)), where K(L, L) =
+	 * U*diag(e)*U^T. Eigenvalues smaller than 1E-8 of the largest one are dropped.
+	 * Kernels are computed from precomputed squared distances to landmarks.
+	 */
+	private static class NystromMap {
+		private final int m;
+		private final float gamma;
+		private final Matrix projection; // m x rank
+
+		NystromMap(float[] landmarkDistances, int m, float gamma) {
+			this.m = m;
+			this.gamma = gamma;
+			double[][] k = new double[m][m];
+			for (int i = 0; i < m; i++) {
+				for (int j = 0; j < m; j++) {
+					k[i][j] = Math.exp(-gamma * landmarkDistances[i * m + j]);
+				}
+			}
+			Matrix kmm = new Matrix(k);
+			kmm.uplo(UPLO.LOWER);
+			Matrix.EVD evd = kmm.eigen(false, true, true);
+			Matrix v = evd.Vr.uplo(null);
+			double max = 0;
+			for (double e : evd.wr) {
+				max = Math.max(max, e);
+			}
+			int rank = 0;
+			for (double e : evd.wr) {
+				rank += (e > 1E-8 * max) ? 1 : 0;
+			}
+			projection = new Matrix(m, rank);
+			int c = 0;
+			for (int l = 0; l < m; l++) {
+				if (evd.wr[l] > 1E-8 * max) {
+					for (int i = 0; i < m; i++) {
+						projection.set(i, c, v.get(i, l) / Math.sqrt(evd.wr[l]));
+					}
+					c++;
+				}
+			}
+		}
+
+		/**
+		 *
+		 * @param distances squared distances to landmarks (row-major, m columns)
+		 * @param rows      rows of distances matrix
+		 * @return Nystrom features of these rows
+		 */
+		float[][] features(float[] distances, int[] rows) {
+			float[][] result = new float[rows.length][];
+			for (int start = 0; start < rows.length; start += rowsBlock) {
+				int n = Math.min(rowsBlock, rows.length - start);
+				Matrix k = new Matrix(n, m);
+				for (int i = 0; i < n; i++) {
+					int offset = rows[start + i] * m;
+					for (int j = 0; j < m; j++) {
+						k.set(i, j, Math.exp(-gamma * distances[offset + j]));
+					}
+				}
+				Matrix phi = k.mm(projection);
+				for (int i = 0; i < n; i++) {
+					result[start + i] = new float[phi.ncols()];
+					for (int j = 0; j < phi.ncols(); j++) {
+						result[start + i][j] = (float) phi.get(i, j);
+					}
+				}
+			}
+			return result;
+		}
+
+		/**
+		 *
+		 * @param weights weights for Nystrom features (intercept is the last one)
+		 * @return coefficients of kernels of landmarks
+		 */
+		double[] alpha(double[] weights) {
+			double[] result = new double[m];
+			for (int i = 0; i < m; i++) {
+				for (int c = 0; c < projection.ncols(); c++) {
+					result[i] += projection.get(i, c) * weights[c];
+				}
+			}
+			return result;
+		}
+	}
+
+	private static class Param {
+		float gamma = 0.003f;
+		float l2 = 0.001f;
+
+		private static float log(double u, float[] minmax) {
+			double log10min = Math.log10(minmax[0]);
+			double log10max = Math.log10(minmax[1]);
+			double r = log10min + u * (log10max - log10min);
+			r = Math.pow(10, r);
+			return (float) r;
+		}
+
+		/**
+		 *
+		 * @param u point of unit cube (gamma), l2 is chosen along regularization
+		 *          path for each gamma
+		 * @return hyperparameters
+		 */
+		public static Param fromUnit(double[] u) {
+			Param result = new Param();
+			result.gamma = log(u[0], gammaRange);
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return "gamma: " + gamma + " l2: " + l2;
+		}
+	}
+
+	private static float[] subset(float[] labels, int[] rows) {
+		float[] result = new float[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			result[i] = labels[rows[i]];
+		}
+		return result;
+	}
+
+	@Override
+	public void train(ChemDataset trainSet, ChemDataset validationSet) {
+		try {
+			float[][] trainFeatures = this.features(trainSet);
+			float[][] validationFeatures = this.features(validationSet);
+			float[] trainLabels = ArUtls.mult(0.001F, trainSet.allRetentions());
+			float[] validationLabels = validationSet.allRetentions();
+			int n = trainFeatures.length;
+			int m = Math.min(numLandmarks, n);
+			int[] order = ArUtls.intsrnd(n);
+			landmarks = new float[m][];
+			for (int i = 0; i < m; i++) {
+				landmarks[i] = trainFeatures[order[i]];
+			}
+			float[] landmarkDistances = ArUtls.squaredDistances(landmarks, landmarks);
+			float[] trainDistances = ArUtls.squaredDistances(trainFeatures, landmarks);
+			float[] validationDistances = ArUtls.squaredDistances(validationFeatures, landmarks);
+			if (isHyperparamsTune()) {
+				Param bestParams = tuneHyperparams(1, Param::fromUnit, n, false, accuracyMeasureTuning,
+						(p, rows) -> {
+							NystromMap map = new NystromMap(landmarkDistances, m, p.gamma);
+							RidgePath path = new RidgePath(map.features(trainDistances, rows),
+									subset(trainLabels, rows));
+							float[][] phiValidation = map.features(validationDistances,
+									ArUtls.ints(validationLabels.length));
+							float bestAccuracy = Float.MAX_VALUE;
+							String bestAccuracyMeasures = null;
+							for (int i = 0; i < l2PathLength; i++) {
+								float l2 = Param.log(i / (l2PathLength - 1.0), l2Range);
+								float[] predictions = ArUtls.mult(1000,
+										RidgePath.predict(path.weights(l2), phiValidation));
+								String accuracyMeasures = QSRRModelRI.accuracyMeasuresValidation(predictions,
+										validationLabels);
+								float accuracy = QSRRModelRI.accuracy(accuracyMeasureTuning, accuracyMeasures);
+								if (accuracy < bestAccuracy) {
+									bestAccuracy = accuracy;
+									bestAccuracyMeasures = accuracyMeasures;
+									p.l2 = l2;
+								}
+							}
+							System.out.println(bestAccuracyMeasures);
+							return bestAccuracyMeasures;
+						});
+				if (bestParams != null) {
+					this.gamma = bestParams.gamma;
+					this.l2 = bestParams.l2;
+				}
+			}
+			NystromMap map = new NystromMap(landmarkDistances, m, gamma);
+			double[] weights = new RidgePath(map.features(trainDistances, ArUtls.ints(n)), trainLabels)
+					.weights(l2);
+			alpha = map.alpha(weights);
+			intercept = weights[weights.length - 1];
+			predictor = new RBFSupportVectors(ArUtls.toDoubleArray2d(landmarks), alpha, -intercept, gamma);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	@Override
+	public float[] predict(String[] smiles, int[] columns) {
+		return ArUtls.mult(1000, predictor.predict(features(smiles, columns)));
+	}
+
+	@Override
+	public void save(String directory) throws IOException {
+		Files.createDirectories(Paths.get(directory));
+		FileWriter fw = new FileWriter(new File(directory, "ModelType.txt"));
+		fw.write(this.modelType());
+		fw.close();
+		fw = new FileWriter(new File(directory, "info.txt"));
+		fw.write(gamma + " " + l2 + " " + numLandmarks);
+		fw.close();
+		fw = new FileWriter(new File(directory, "info1.txt"));
+		fw.write(this.fullModelInfo());
+		fw.close();
+		fw = new FileWriter(new File(directory, "model.txt"));
+		fw.write(intercept + "\n");
+		for (int i = 0; i < landmarks.length; i++) {
+			fw.write(alpha[i] + "");
+			for (int j = 0; j < landmarks[i].length; j++) {
+				fw.write(" " + landmarks[i][j]);
+			}
+			fw.write("\n");
+		}
+		fw.close();
+	}
+
+	@Override
+	public void load(String directory) throws IOException {
+		BufferedReader br = new BufferedReader(new FileReader(new File(directory, "ModelType.txt")));
+		String s = br.readLine();
+		while (s.trim().equals("")) {
+			s = br.readLine();
+		}
+		br.close();
+		if (!s.trim().equals(this.modelType())) {
+			throw new RuntimeException("Wrong model type");
+		}
+		br = new BufferedReader(new FileReader(new File(directory, "info.txt")));
+		s = br.readLine();
+		while (s.trim().equals("")) {
+			s = br.readLine();
+		}
+		br.close();
+		String[] split = s.trim().split("\\s+");
+		this.gamma = Float.parseFloat(split[0]);
+		this.l2 = Float.parseFloat(split[1]);
+		this.numLandmarks = Integer.parseInt(split[2]);
+
+		br = new BufferedReader(new FileReader(new File(directory, "model.txt")));
+		intercept = Double.parseDouble(br.readLine().trim());
+		ArrayList<String> lines = new ArrayList<String>();
+		s = br.readLine();
+		while (s != null) {
+			if (!s.trim().equals("")) {
+				lines.add(s.trim());
+			}
+			s = br.readLine();
+		}
+		br.close();
+		alpha = new double[lines.size()];
+		landmarks = new float[lines.size()][];
+		for (int i = 0; i < lines.size(); i++) {
+			split = lines.get(i).split("\\s+");
+			alpha[i] = Double.parseDouble(split[0]);
+			landmarks[i] = new float[split.length - 1];
+			for (int j = 1; j < split.length; j++) {
+				landmarks[i][j - 1] = Float.parseFloat(split[j]);
+			}
+		}
+		predictor = new RBFSupportVectors(ArUtls.toDoubleArray2d(landmarks), alpha, -intercept, gamma);
+	}
+
+	@Override
+	public double estimateTrainingCost(int trainSize, int validationSize) {
+		double m = Math.min(numLandmarks, trainSize);
+		double distances = (trainSize + validationSize + m) * m * numFeatures();
+		return distances + numFits(trainSize) * ((trainSize + validationSize) * m * m + trainSize * m * m + m * m * m);
+	}
+
+	@Override
+	public double estimateTrainingMemory(int trainSize, int validationSize, int nThreads) {
+		double m = Math.min(numLandmarks, trainSize);
+		// features, distances to landmarks, Nystrom features (float and scaled double copy), kernel matrices
+		return 4.0 * numFeatures() * (trainSize + validationSize) + 4 * m * (trainSize + validationSize + m)
+				+ 12 * m * (trainSize + validationSize) + 32 * m * m;
+	}
+
+	@Override
+	public String modelType() {
+		return "NYSTROM";
+	}
+
+	@Override
+	public String fullModelInfo() {
+		return "NYSTROM " + " gamma " + gamma + " l2 " + l2 + " landmarks " + numLandmarks;
+	}
+
+	@Override
+	public ModelRI createSimilar() {
+		NystromRI result = (NystromRI) QSRRModelRI.getModel(this.modelType(), this.getGenCol(), this.getGen(),
+				this.isHyperparamsTune(), this.getHyperparamsTuneFile(), this.getHyperparamsTuneAttempts());
+		result.gamma = this.gamma;
+		result.l2 = this.l2;
+		result.numLandmarks = this.numLandmarks;
+		return result;
+	}
+
+}
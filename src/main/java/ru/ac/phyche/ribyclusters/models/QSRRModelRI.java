@@ -3,8 +3,14 @@ package ru.ac.phyche.ribyclusters.models;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.util.function.Function;
+
+import ru.ac.phyche.ribyclusters.ArUtls;
+import ru.ac.phyche.ribyclusters.ChemDataset;
 import ru.ac.phyche.ribyclusters.ColumnFeatures;
+import ru.ac.phyche.ribyclusters.FeatureMatrix;
 import ru.ac.phyche.ribyclusters.RIByClusters;
 import ru.ac.phyche.ribyclusters.featuregenerators.FeaturesGenerator;
 
@@ -18,6 +24,9 @@ public abstract class QSRRModelRI extends ModelRI {
 	private boolean hyperparamsTune = false;
 	private String hyperparamsTuneFile = null;
 	private int hyperparamsTuneAttempts = 0;
+	private int tuningEvaluations = 0; // 0 - not tuned yet
+	private FeatureMatrix sharedFeatures = null;
+	private transient long featuresNanos = 0;
 
 	@Override
 	public void setTuningOutFileOrDir(String filename) {
@@ -64,6 +73,136 @@ public abstract class QSRRModelRI extends ModelRI {
 		this.hyperparamsTuneAttempts = hyperparamsTuneAttempts;
 	}
 
+	@Override
+	public void setSharedFeatures(FeatureMatrix features) {
+		this.sharedFeatures = features;
+	}
+
+	public FeatureMatrix getSharedFeatures() {
+		return sharedFeatures;
+	}
+
+	protected float[][] features(ChemDataset set) {
+		return features(set.allSmiles(), set.allColumns());
+	}
+
+	/**
+	 * Column features merged with molecular features. Rows are taken from the
+	 * shared features matrix if it contains all entries.
+	 * 
+	 * @param smiles  SMILES strings
+	 * @param columns columns
+	 * @return features
+	 */
+	protected float[][] features(String[] smiles, int[] columns) {
+		if ((sharedFeatures != null) && sharedFeatures.isFor(genCol, gen)) {
+			float[][] rows = sharedFeatures.rows(smiles, columns);
+			if (rows != null) {
+				return rows;
+			}
+		}
+		long t = System.nanoTime();
+		getGen().precompute(smiles);
+		float[][] features = getGen().features(smiles);
+		float[][] features1 = new float[features.length][];
+		float[][] columnsFeatures = getGenCol().columnFeatures(columns);
+		for (int i = 0; i < features.length; i++) {
+			features1[i] = ArUtls.mergeArrays(columnsFeatures[i], features[i]);
+		}
+		addFeaturesTime(System.nanoTime() - t);
+		return features1;
+	}
+
+	private synchronized void addFeaturesTime(long nanos) {
+		featuresNanos += nanos;
+	}
+
+	@Override
+	public synchronized long featuresTimeNanos() {
+		return featuresNanos;
+	}
+
+	/**
+	 * 
+	 * @return number of features used by model (column features and molecular
+	 *         features)
+	 */
+	protected int numFeatures() {
+		return genCol.getNumFeatures() + gen.getNumFeatures();
+	}
+
+	/**
+	 * 
+	 * @return number of models trained in the train method (tuning evaluations
+	 *         and final model), estimated with numFits(int) for the training set
+	 *         with all successive halving rungs if the model is not trained yet
+	 */
+	@Override
+	public int numFits() {
+		if (!hyperparamsTune) {
+			return 1;
+		}
+		if (tuningEvaluations > 0) {
+			return tuningEvaluations + 1;
+		}
+		return numFits(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Estimation of numFits before training, for estimateTrainingCost.
+	 * 
+	 * @param trainSize size of the training set
+	 * @return number of models that will be trained by HyperparamsTuner and the
+	 *         final model
+	 */
+	protected int numFits(int trainSize) {
+		if (!hyperparamsTune) {
+			return 1;
+		}
+		return HyperparamsTuner.evaluations(hyperparamsTuneAttempts, trainSize) + 1;
+	}
+
+	/**
+	 * For models that tune hyperparameters without HyperparamsTuner
+	 * (regularization paths).
+	 * 
+	 * @param tuningEvaluations number of evaluated configurations
+	 */
+	protected void setTuningEvaluations(int tuningEvaluations) {
+		this.tuningEvaluations = tuningEvaluations;
+	}
+
+	/**
+	 * Hyperparameters tuning with getHyperparamsTuneAttempts() configurations
+	 * (see HyperparamsTuner), evaluations are written to getHyperparamsTuneFile().
+	 * 
+	 * @param dimensions number of hyperparameters
+	 * @param decode     hyperparameters from point of unit hypercube
+	 * @param trainSize  size of the training set
+	 * @param parallel   parallel evaluation of configurations
+	 * @param measure    loss
+	 * @param objective  training with given hyperparameters and validation
+	 * @return the best hyperparameters, null if tuning failed (the model should
+	 *         keep its current hyperparameters)
+	 * @throws IOException io
+	 */
+	protected <P> P tuneHyperparams(int dimensions, Function<double[], P> decode, int trainSize, boolean parallel,
+			AccuracyMeasure measure, HyperparamsTuner.Objective<P> objective) throws IOException {
+		FileWriter fw = null;
+		if (getHyperparamsTuneFile() != null) {
+			fw = new FileWriter(getHyperparamsTuneFile());
+		}
+		HyperparamsTuner<P> tuner = new HyperparamsTuner<P>(dimensions, decode, measure, parallel);
+		try {
+			return tuner.tune(getHyperparamsTuneAttempts(), trainSize, objective, fw, modelType());
+		} finally {
+			tuningEvaluations = tuner.getEvaluations();
+			if (fw != null) {
+				fw.close();
+			}
+		}
+	}
+
 	public QSRRModelRI(ColumnFeatures genCol, FeaturesGenerator gen) {
 		this.gen = gen;
 		this.genCol = genCol;
@@ -91,6 +230,9 @@ public abstract class QSRRModelRI extends ModelRI {
 		if (modelType.equals((new XgbRI(null, null)).modelType())) {
 			return new XgbRI(null, null);
 		}
+		if (modelType.equals((new NystromRI(null, null)).modelType())) {
+			return new NystromRI(null, null);
+		}
 		throw new RuntimeException("Unknown model type " + modelType);
 	}
 
@@ -0,0 +1,144 @@
+package ru.ac.phyche.ribyclusters.models;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import libsvm.svm_model;
+import libsvm.svm_node;
+import libsvm.svm_parameter;
+
+/**
+ * Prediction of LIBSVM regression models (EPSILON_SVR, NU_SVR) with RBF kernel
+ * without svm_node arrays. Support vectors are stored as dense blocks with dual
+ * coefficients and squared norms. Queries are evaluated in blocks: squared
+ * distances |x|^2 + |s|^2 - 2x*s between a block of queries and a block of
+ * support vectors are computed while both blocks are in cache, the inner loop
+ * over support vectors of a block is a vectorizable axpy. Instances are
+ * immutable and can be used from several threads concurrently.
+ */
+public class RBFSupportVectors {
+	private static final int queriesBlock = 16;
+	private static final int supportVectorsBlock = 128;
+
+	private final int nSV;
+	private final int d;
+	// blocks of supportVectorsBlock support vectors, each block is d x block size (column-major)
+	private final double[] blocks;
+	private final double[] svNorms; // squared norms
+	private final double[] coefficients;
+	private final double rho;
+	private final double gamma;
+
+	/**
+	 *
+	 * @param m trained or loaded model
+	 */
+	public RBFSupportVectors(svm_model m) {
+		this(dense(m), Arrays.copyOf(m.sv_coef[0], m.l), m.rho[0], m.param.gamma);
+	}
+
+	/**
+	 * Decision function sum_s coefficients[s]*exp(-gamma*|x-s|^2) - rho.
+	 *
+	 * @param supportVectors support vectors (or landmarks)
+	 * @param coefficients   dual coefficients
+	 * @param rho            minus intercept
+	 * @param gamma          RBF kernel parameter
+	 */
+	RBFSupportVectors(double[][] supportVectors, double[] coefficients, double rho, double gamma) {
+		nSV = supportVectors.length;
+		d = (nSV == 0) ? 0 : supportVectors[0].length;
+		this.coefficients = coefficients;
+		this.rho = rho;
+		this.gamma = gamma;
+		svNorms = new double[nSV];
+		blocks = new double[nSV * d];
+		for (int s = 0; s < nSV; s++) {
+			int s0 = s - s % supportVectorsBlock;
+			int bs = Math.min(nSV, s0 + supportVectorsBlock) - s0;
+			for (int k = 0; k < d; k++) {
+				blocks[s0 * d + k * bs + s - s0] = supportVectors[s][k];
+				svNorms[s] += supportVectors[s][k] * supportVectors[s][k];
+			}
+		}
+	}
+
+	private static double[][] dense(svm_model m) {
+		int type = m.param.svm_type;
+		if ((m.param.kernel_type != svm_parameter.RBF)
+				|| ((type != svm_parameter.NU_SVR) && (type != svm_parameter.EPSILON_SVR))) {
+			throw new RuntimeException("Only SVR models with RBF kernel are supported");
+		}
+		int maxIndex = 0;
+		for (int s = 0; s < m.l; s++) {
+			for (svm_node node : m.SV[s]) {
+				maxIndex = Math.max(maxIndex, node.index);
+			}
+		}
+		double[][] result = new double[m.l][maxIndex];
+		for (int s = 0; s < m.l; s++) {
+			for (svm_node node : m.SV[s]) {
+				if (node.index > 0) {
+					result[s][node.index - 1] = node.value;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @param x features (dense, feature j corresponds to svm_node index j+1)
+	 * @return decision function values (same as svm.svm_predict)
+	 */
+	public float[] predict(float[][] x) {
+		float[] result = new float[x.length];
+		int nBlocks = (x.length + queriesBlock - 1) / queriesBlock;
+		IntStream.range(0, nBlocks).parallel().forEach(b -> {
+			int start = b * queriesBlock;
+			int end = Math.min(x.length, start + queriesBlock);
+			double[] sums = new double[end - start];
+			double[] norms = new double[end - start];
+			for (int i = start; i < end; i++) {
+				for (int k = 0; k < x[i].length; k++) {
+					norms[i - start] += (double) x[i][k] * x[i][k];
+				}
+			}
+			double[] dots = new double[supportVectorsBlock];
+			for (int s0 = 0; s0 < nSV; s0 += supportVectorsBlock) {
+				int bs = Math.min(nSV, s0 + supportVectorsBlock) - s0;
+				int base = s0 * d;
+				for (int i = start; i < end; i++) {
+					float[] row = x[i];
+					int n = Math.min(d, row.length);
+					Arrays.fill(dots, 0.0);
+					for (int k = 0; k < n; k++) {
+						double xk = row[k];
+						int offset = base + k * bs;
+						for (int j = 0; j < bs; j++) {
+							dots[j] += xk * blocks[offset + j];
+						}
+					}
+					double sum = 0;
+					for (int j = 0; j < bs; j++) {
+						double distance = Math.max(0, norms[i - start] + svNorms[s0 + j] - 2.0 * dots[j]);
+						sum += coefficients[s0 + j] * Math.exp(-gamma * distance);
+					}
+					sums[i - start] += sum;
+				}
+			}
+			for (int i = start; i < end; i++) {
+				result[i] = (float) (sums[i - start] - rho);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 *
+	 * @return number of support vectors
+	 */
+	public int numSupportVectors() {
+		return nSV;
+	}
+}
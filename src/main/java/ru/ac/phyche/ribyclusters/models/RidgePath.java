@@ -0,0 +1,104 @@
+package ru.ac.phyche.ribyclusters.models;
+
+import smile.math.blas.UPLO;
+import smile.math.matrix.Matrix;
+
+/**
+ * Ridge regression for many l2 values. As in smile RidgeRegression, features
+ * are centered and scaled to unit standard deviation and the intercept is
+ * not penalized. Z^T*Z = V*diag(e)*V^T is computed once, then weights for
+ * any l2 are V*diag(1/(e+l2))*V^T*Z^T*y. Constant columns get zero weights.
+ * RidgeRI and NystromRI use it for tuning and for the final fit, so one
+ * decomposition per training set serves all l2 values, and prediction is a
+ * plain dot product.
+ */
+class RidgePath {
+	private final int d;
+	private final double[] center;
+	private final double[] scale; // 0 for constant columns
+	private final double yMean;
+	private final double[] eigenvalues;
+	private final Matrix eigenvectors;
+	private final double[] projected; // V^T*Z^T*y
+
+	RidgePath(float[][] x, float[] y) {
+		int n = x.length;
+		d = x[0].length;
+		center = new double[d];
+		scale = new double[d];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < d; j++) {
+				center[j] += x[i][j];
+			}
+		}
+		for (int j = 0; j < d; j++) {
+			center[j] = center[j] / n;
+		}
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < d; j++) {
+				scale[j] += (x[i][j] - center[j]) * (x[i][j] - center[j]);
+			}
+		}
+		for (int j = 0; j < d; j++) {
+			scale[j] = Math.sqrt(scale[j] / (n - 1));
+			scale[j] = (scale[j] < 1E-10) ? 0 : scale[j];
+		}
+		double ySum = 0;
+		for (int i = 0; i < n; i++) {
+			ySum += y[i];
+		}
+		yMean = ySum / n;
+		Matrix z = new Matrix(n, d);
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < d; j++) {
+				z.set(i, j, (scale[j] == 0) ? 0 : (x[i][j] - center[j]) / scale[j]);
+			}
+		}
+		double[] yd = new double[n];
+		for (int i = 0; i < n; i++) {
+			yd[i] = y[i];
+		}
+		double[] zty = z.tv(yd);
+		Matrix g = z.ata(); // BLAS, O(n*d^2) dominates for large training sets
+		g.uplo(UPLO.LOWER);
+		Matrix.EVD evd = g.eigen(false, true, true);
+		eigenvalues = evd.wr;
+		eigenvectors = evd.Vr.uplo(null); // eigenvectors overwrite g, they are not symmetric
+		projected = eigenvectors.tv(zty);
+	}
+
+	/**
+	 * 
+	 * @param l2 l2 penalty
+	 * @return weights for original (not scaled) features, the last element
+	 *         is intercept
+	 */
+	double[] weights(float l2) {
+		double[] c = new double[d];
+		for (int k = 0; k < d; k++) {
+			c[k] = projected[k] / (Math.max(eigenvalues[k], 0) + l2);
+		}
+		double[] w = eigenvectors.mv(c);
+		double[] result = new double[d + 1];
+		double intercept = yMean;
+		for (int j = 0; j < d; j++) {
+			result[j] = (scale[j] == 0) ? 0 : w[j] / scale[j];
+			intercept -= result[j] * center[j];
+		}
+		result[d] = intercept;
+		return result;
+	}
+
+	static float[] predict(double[] weights, float[][] x) {
+		float[] result = new float[x.length];
+		int d = weights.length - 1;
+		for (int i = 0; i < x.length; i++) {
+			double sum = weights[d];
+			for (int j = 0; j < d; j++) {
+				sum += weights[j] * x[i][j];
+			}
+			result[i] = (float) sum;
+		}
+		return result;
+	}
+}
@@ -7,26 +7,25 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.io.xml.StaxDriver;
 
 import ru.ac.phyche.ribyclusters.ArUtls;
 import ru.ac.phyche.ribyclusters.ChemDataset;
 import ru.ac.phyche.ribyclusters.ColumnFeatures;
 import ru.ac.phyche.ribyclusters.featuregenerators.FeaturesGenerator;
-import smile.data.DataFrame;
-import smile.data.formula.Formula;
 import smile.regression.LinearModel;
-import smile.regression.RidgeRegression;
 
 public class RidgeRI extends QSRRModelRI {
 	private static final QSRRModelRI.AccuracyMeasure accuracyMeasureTuning = QSRRModelRI.AccuracyMeasure.MDAE;
 
 	private static final float[] l2Range = new float[] { 1E-9f, 1E5f };
 
-	private LinearModel mdl = null;
+	private double[] weights = null; // the last one is intercept
 	private float l2 = 0.0001f;
+	private boolean regularizationPath = false;
 
 	public RidgeRI(ColumnFeatures genCol, FeaturesGenerator gen) {
 		super(genCol, gen);
@@ -42,20 +41,63 @@ public class RidgeRI extends QSRRModelRI {
 		this.l2 = l2;
 	}
 
+	/**
+	 * If enabled, hyperparameters tuning evaluates getHyperparamsTuneAttempts()
+	 * l2 values (log-uniform grid, ascending) using one eigendecomposition of
+	 * the Gram matrix of the training set (see RidgePath), each l2 costs O(d^2)
+	 * instead of a full fit. Disabled by default.
+	 * 
+	 * @param regularizationPath true to enable
+	 */
+	public void setRegularizationPath(boolean regularizationPath) {
+		this.regularizationPath = regularizationPath;
+	}
+
+	/**
+	 * Tuning along regularization path, see setRegularizationPath.
+	 */
+	private Param tunePath(RidgePath path, float[][] validationFeatures, float[] validationLabels)
+			throws IOException {
+		int n = getHyperparamsTuneAttempts();
+		setTuningEvaluations(n);
+		FileWriter fw = null;
+		if (getHyperparamsTuneFile() != null) {
+			fw = new FileWriter(getHyperparamsTuneFile());
+		}
+		float bestAccuracy = Float.MAX_VALUE;
+		Param bestParams = null;
+		for (int i = 0; i < n; i++) {
+			Param p = Param.fromUnit(new double[] { (n == 1) ? 0.5 : i / (n - 1.0) });
+			String accuracyMeasures = validate(path.weights(p.l2), validationFeatures, validationLabels);
+			float accuracy = QSRRModelRI.accuracy(accuracyMeasureTuning, accuracyMeasures);
+			if (accuracy < bestAccuracy) {
+				bestAccuracy = accuracy;
+				bestParams = p;
+			}
+			if (fw != null) {
+				fw.write(modelType() + " " + p.toString() + " " + accuracyMeasures + "\n");
+			}
+		}
+		if (fw != null) {
+			fw.close();
+		}
+		return bestParams;
+	}
+
 	private static class Param {
 		float l2 = 0.0001f;
 
-		private static float logrnd(float[] minmax) {
+		private static float log(double u, float[] minmax) {
 			double log10min = Math.log10(minmax[0]);
 			double log10max = Math.log10(minmax[1]);
-			double r = log10min + Math.random() * (log10max - log10min);
+			double r = log10min + u * (log10max - log10min);
 			r = Math.pow(10, r);
 			return (float) r;
 		}
 
-		public static Param rnd() {
+		public static Param fromUnit(double[] u) {
 			Param result = new Param();
-			result.l2 = logrnd(l2Range);
+			result.l2 = log(u[0], l2Range);
 			return result;
 		}
 
@@ -67,47 +109,8 @@ public class RidgeRI extends QSRRModelRI {
 		}
 	}
 
-	private float[][] features(ChemDataset set) {
-		return features(set.allSmiles(), set.allColumns());
-	}
-
-	private float[][] features(String[] smiles, int[] columns) {
-		getGen().precompute(smiles);
-		float[][] features = getGen().features(smiles);
-		float[][] features1 = new float[features.length][];
-		float[][] columnsFeatures = getGenCol().columnFeatures(columns);
-		for (int i = 0; i < features.length; i++) {
-			features1[i] = ArUtls.mergeArrays(columnsFeatures[i], features[i]);
-		}
-		return features1;
-	}
-
-	private LinearModel train(Param p, float[][] trainFeatures, float[] labels) throws IOException {
-		for (int j = 0; j < trainFeatures[0].length; j++) {// Adding noise to constant columns!!!!
-			float x = trainFeatures[0][j];
-			boolean isconstant = true;
-			for (int i = 0; i < trainFeatures.length; i++) {
-				if (Math.abs(trainFeatures[i][j] - x) > 1E-5F) {
-					isconstant = false;
-				}
-			}
-			if (isconstant) {
-				int rnd = (int) Math.round(Math.random() * trainFeatures.length);
-				trainFeatures[rnd][j] += 2E-5;
-			}
-		}
-
-		DataFrame dataFrame = ArUtls.toDataFrame(trainFeatures, ArUtls.mult(0.001F, labels));
-		try {
-			return RidgeRegression.fit(Formula.lhs("label"), dataFrame, p.l2);
-		} catch (Throwable e) {
-			e.printStackTrace();
-			return null;
-		}
-	}
-
-	private String validate(LinearModel lm, float[][] features, float[] labels) {
-		float[] predictions = ArUtls.mult(1000, ArUtls.toFloatArray(lm.predict(ArUtls.toDataFrame(features))));
+	private String validate(double[] weights, float[][] features, float[] labels) {
+		float[] predictions = ArUtls.mult(1000, RidgePath.predict(weights, features));
 		String accuracyMeasures = QSRRModelRI.accuracyMeasuresValidation(predictions, labels);
 		System.out.println(accuracyMeasures);
 		return accuracyMeasures;
@@ -118,44 +121,34 @@ public class RidgeRI extends QSRRModelRI {
 		try {
 			float[][] trainFeatures = this.features(trainSet);
 			float[][] validationFeatures = this.features(validationSet);
-			float[] trainLabels = trainSet.allRetentions();
+			float[] trainLabels = ArUtls.mult(0.001F, trainSet.allRetentions());
 			float[] validationLabels = validationSet.allRetentions();
-			if (isHyperparamsTune()) {
-				float bestAccuracy = Float.MAX_VALUE;
-				Param bestParams = null;
-
-				FileWriter fw = null;
-				if (getHyperparamsTuneFile() != null) {
-					fw = new FileWriter(getHyperparamsTuneFile());
-				}
-				for (int n = 0; n < getHyperparamsTuneAttempts(); n++) {
-					Param p = Param.rnd();
-					LinearModel b = this.train(p, trainFeatures, trainLabels);
-					if (b != null) {
-						String accuracyMeasures = this.validate(b, validationFeatures, validationLabels);
-						float accuracy = QSRRModelRI.accuracy(accuracyMeasureTuning, accuracyMeasures);
-						if (accuracy < bestAccuracy) {
-							bestAccuracy = accuracy;
-							bestParams = p;
-						}
-						if (fw != null) {
-							fw.write(modelType() + " " + p.toString() + " " + accuracyMeasures + "\n");
-							fw.flush();
-						}
-					} else {
-						fw.write(modelType() + " " + p.toString() + " Training Failed\n");
-					}
+			RidgePath path = new RidgePath(trainFeatures, trainLabels);
+			if (isHyperparamsTune() && regularizationPath) {
+				this.l2 = tunePath(path, validationFeatures, validationLabels).l2;
+			} else if (isHyperparamsTune()) {
+				// one decomposition for each training set fraction of successive halving
+				HashMap<Integer, RidgePath> paths = new HashMap<Integer, RidgePath>();
+				paths.put(trainFeatures.length, path);
+				Param bestParams = tuneHyperparams(1, Param::fromUnit, trainFeatures.length, false,
+						accuracyMeasureTuning, (p, rows) -> {
+							if (!paths.containsKey(rows.length)) {
+								float[][] features = new float[rows.length][];
+								float[] labels = new float[rows.length];
+								for (int i = 0; i < rows.length; i++) {
+									features[i] = trainFeatures[rows[i]];
+									labels[i] = trainLabels[rows[i]];
+								}
+								paths.put(rows.length, new RidgePath(features, labels));
+							}
+							return this.validate(paths.get(rows.length).weights(p.l2), validationFeatures,
+									validationLabels);
+						});
+				if (bestParams != null) {
+					this.l2 = bestParams.l2;
 				}
-
-				if (fw != null) {
-					fw.close();
-				}
-				this.l2 = bestParams.l2;
 			}
-			Param p = new Param();
-			p.l2 = this.l2;
-			LinearModel b = this.train(p, trainFeatures, trainLabels);
-			this.mdl = b;
+			this.weights = path.weights(this.l2);
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new RuntimeException(e.getMessage());
@@ -165,8 +158,7 @@ public class RidgeRI extends QSRRModelRI {
 	@Override
 	public float[] predict(String[] smiles, int[] columns) {
 		float[][] features = features(smiles, columns);
-		float[] predictions = ArUtls.mult(1000, ArUtls.toFloatArray(mdl.predict(ArUtls.toDataFrame(features))));
-		return predictions;
+		return ArUtls.mult(1000, RidgePath.predict(weights, features));
 	}
 
 	@Override
@@ -181,10 +173,11 @@ public class RidgeRI extends QSRRModelRI {
 		fw = new FileWriter(new File(directory, "info1.txt"));
 		fw.write(this.fullModelInfo());
 		fw.close();
-		File f = new File(directory, "model.xml");
-		fw = new FileWriter(f);
-		XStream xstream = new XStream(new StaxDriver());
-		xstream.toXML(mdl, fw);
+		fw = new FileWriter(new File(directory, "model.txt"));
+		for (int i = 0; i < weights.length; i++) {
+			fw.write(weights[i] + ((i == weights.length - 1) ? "\n" : " "));
+		}
+		fw.close();
 	}
 
 	@Override
@@ -206,11 +199,45 @@ public class RidgeRI extends QSRRModelRI {
 		br.close();
 		this.l2 = Float.parseFloat(s);
 
-		File f = new File(directory, "model.xml");
-		XStream xstream = new XStream();
-		xstream.allowTypes(new String[] { "smile.regression.LinearModel", "smile.data.formula.Variable",
-				"smile.data.type.StructField", "smile.data.type.DoubleType" });
-		mdl = (LinearModel) xstream.fromXML(f);
+		File f = new File(directory, "model.txt");
+		if (f.exists()) {
+			br = new BufferedReader(new FileReader(f));
+			String[] split = br.readLine().trim().split("\\s+");
+			br.close();
+			weights = new double[split.length];
+			for (int i = 0; i < split.length; i++) {
+				weights[i] = Double.parseDouble(split[i]);
+			}
+		} else { // models saved as smile LinearModel
+			XStream xstream = new XStream();
+			xstream.allowTypes(new String[] { "smile.regression.LinearModel", "smile.data.formula.Variable",
+					"smile.data.type.StructField", "smile.data.type.DoubleType" });
+			LinearModel mdl = (LinearModel) xstream.fromXML(new File(directory, "model.xml"));
+			double[] coefficients = mdl.coefficients();
+			weights = Arrays.copyOf(coefficients, coefficients.length + 1);
+			weights[coefficients.length] = mdl.intercept();
+		}
+	}
+
+	@Override
+	public double estimateTrainingCost(int trainSize, int validationSize) {
+		double d = numFeatures();
+		double decompositions = isHyperparamsTune() ? 2 : 1; // successive halving fractions: 1, 1/3, 1/9
+		return decompositions * (trainSize * d * d + d * d * d) + numFits(trainSize) * (d * d + validationSize * d);
+	}
+
+	@Override
+	protected int numFits(int trainSize) {
+		if (isHyperparamsTune() && regularizationPath) {
+			return getHyperparamsTuneAttempts() + 1;
+		}
+		return super.numFits(trainSize);
+	}
+
+	@Override
+	public double estimateTrainingMemory(int trainSize, int validationSize, int nThreads) {
+		double d = numFeatures();
+		return 4 * d * (trainSize + validationSize) + 8 * d * trainSize + 24 * d * d; // features, scaled copy
 	}
 
 	@Override
@@ -227,7 +254,8 @@ public class RidgeRI extends QSRRModelRI {
 	public ModelRI createSimilar() {
 		RidgeRI result = (RidgeRI) QSRRModelRI.getModel(this.modelType(), this.getGenCol(), this.getGen(),
 				this.isHyperparamsTune(), this.getHyperparamsTuneFile(), this.getHyperparamsTuneAttempts());
-		result.l2=this.l2;
+		result.l2 = this.l2;
+		result.regularizationPath = this.regularizationPath;
 		return result;
 	}
 
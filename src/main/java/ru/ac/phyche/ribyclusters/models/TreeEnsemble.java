@@ -0,0 +1,312 @@
+package ru.ac.phyche.ribyclusters.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Pure Java inference of XGBoost tree ensembles saved in JSON format
+ * (Booster.saveModel with .json extension). Only gbtree regression models with
+ * identity link are supported. Nodes of all trees are stored in flat arrays,
+ * rows are evaluated in blocks: all trees for a block of rows, so that the
+ * block and the current tree stay in cache. Instances are immutable and can be
+ * used from several threads concurrently.
+ */
+public class TreeEnsemble {
+	private static final int rowsBlock = 64;
+	private static final String[] identityObjectives = new String[] { "reg:squarederror", "reg:linear",
+			"reg:pseudohubererror", "reg:squaredlogerror" };
+
+	private final float baseScore;
+	private final float missing;
+	private final int[] roots;
+	private final int[] splitFeatures;
+	private final float[] splitConditions; // leaf value for leaves
+	private final int[] leftChildren; // -1 for leaves
+	private final int[] rightChildren;
+	private final boolean[] defaultLeft;
+
+	private TreeEnsemble(float baseScore, float missing, int[] roots, int[] splitFeatures, float[] splitConditions,
+			int[] leftChildren, int[] rightChildren, boolean[] defaultLeft) {
+		this.baseScore = baseScore;
+		this.missing = missing;
+		this.roots = roots;
+		this.splitFeatures = splitFeatures;
+		this.splitConditions = splitConditions;
+		this.leftChildren = leftChildren;
+		this.rightChildren = rightChildren;
+		this.defaultLeft = defaultLeft;
+	}
+
+	/**
+	 *
+	 * @param modelJson model saved by XGBoost in JSON format
+	 * @param missing   value that denotes missing feature (as in DMatrix used for
+	 *                  training), NaN is always missing
+	 * @return ensemble
+	 * @throws IOException io or unsupported model
+	 */
+	@SuppressWarnings("unchecked")
+	public static TreeEnsemble load(File modelJson, float missing) throws IOException {
+		String s = new String(Files.readAllBytes(modelJson.toPath()), StandardCharsets.UTF_8);
+		HashMap<String, Object> learner = (HashMap<String, Object>) ((HashMap<String, Object>) new JsonReader(s)
+				.value()).get("learner");
+		HashMap<String, Object> learnerParam = (HashMap<String, Object>) learner.get("learner_model_param");
+		String objective = (String) ((HashMap<String, Object>) learner.get("objective")).get("name");
+		HashMap<String, Object> booster = (HashMap<String, Object>) learner.get("gradient_booster");
+		if (!Arrays.asList(identityObjectives).contains(objective) || !"gbtree".equals(booster.get("name"))
+				|| (Integer.parseInt((String) learnerParam.get("num_class")) > 1)) {
+			throw new IOException("Unsupported XGBoost model: " + booster.get("name") + " " + objective);
+		}
+		float baseScore = Float.parseFloat((String) learnerParam.get("base_score"));
+		ArrayList<Object> trees = (ArrayList<Object>) ((HashMap<String, Object>) booster.get("model")).get("trees");
+		int[] roots = new int[trees.size()];
+		int nNodes = 0;
+		for (int t = 0; t < trees.size(); t++) {
+			roots[t] = nNodes;
+			nNodes += ((double[]) ((HashMap<String, Object>) trees.get(t)).get("left_children")).length;
+		}
+		int[] splitFeatures = new int[nNodes];
+		float[] splitConditions = new float[nNodes];
+		int[] leftChildren = new int[nNodes];
+		int[] rightChildren = new int[nNodes];
+		boolean[] defaultLeft = new boolean[nNodes];
+		for (int t = 0; t < trees.size(); t++) {
+			HashMap<String, Object> tree = (HashMap<String, Object>) trees.get(t);
+			double[] left = (double[]) tree.get("left_children");
+			double[] right = (double[]) tree.get("right_children");
+			double[] features = (double[]) tree.get("split_indices");
+			double[] conditions = (double[]) tree.get("split_conditions");
+			double[] defaults = (double[]) tree.get("default_left");
+			for (int k = 0; k < left.length; k++) {
+				int node = roots[t] + k;
+				boolean leaf = left[k] < 0;
+				leftChildren[node] = leaf ? -1 : roots[t] + (int) left[k];
+				rightChildren[node] = leaf ? -1 : roots[t] + (int) right[k];
+				splitFeatures[node] = (int) features[k];
+				splitConditions[node] = (float) conditions[k];
+				defaultLeft[node] = defaults[k] != 0;
+			}
+		}
+		return new TreeEnsemble(baseScore, missing, roots, splitFeatures, splitConditions, leftChildren,
+				rightChildren, defaultLeft);
+	}
+
+	/**
+	 *
+	 * @param x features
+	 * @return predictions (raw margins, base score included)
+	 */
+	public float[] predict(float[][] x) {
+		float[] result = new float[x.length];
+		Arrays.fill(result, baseScore);
+		for (int start = 0; start < x.length; start += rowsBlock) {
+			int end = Math.min(x.length, start + rowsBlock);
+			for (int t = 0; t < roots.length; t++) {
+				for (int i = start; i < end; i++) {
+					float[] row = x[i];
+					int node = roots[t];
+					while (leftChildren[node] >= 0) {
+						float v = row[splitFeatures[node]];
+						boolean left = ((v == missing) || Float.isNaN(v)) ? defaultLeft[node]
+								: v < splitConditions[node];
+						node = left ? leftChildren[node] : rightChildren[node];
+					}
+					result[i] += splitConditions[node];
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Rows for comparison with other implementations: each feature is missing
+	 * or equal to one of split conditions of this feature (or slightly less than
+	 * it), so that both branches of splits and ties are visited.
+	 *
+	 * @param n         number of rows
+	 * @param nFeatures number of features
+	 * @param missing   value for missing features
+	 * @return rows
+	 */
+	float[][] probeRows(int n, int nFeatures, float missing) {
+		ArrayList<ArrayList<Float>> conditions = new ArrayList<ArrayList<Float>>();
+		for (int j = 0; j < nFeatures; j++) {
+			conditions.add(new ArrayList<Float>());
+		}
+		for (int node = 0; node < leftChildren.length; node++) {
+			if ((leftChildren[node] >= 0) && (splitFeatures[node] < nFeatures)) {
+				conditions.get(splitFeatures[node]).add(splitConditions[node]);
+			}
+		}
+		Random rnd = new Random(0);
+		float[][] result = new float[n][nFeatures];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < nFeatures; j++) {
+				ArrayList<Float> c = conditions.get(j);
+				if (rnd.nextInt(10) == 0) {
+					result[i][j] = missing;
+				} else if (!c.isEmpty()) {
+					float v = c.get(rnd.nextInt(c.size()));
+					result[i][j] = rnd.nextBoolean() ? v : Math.nextDown(v);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 * @return number of trees
+	 */
+	public int numTrees() {
+		return roots.length;
+	}
+
+	/**
+	 * Minimal JSON reader: objects are HashMaps, arrays of numbers or booleans
+	 * are double[] (booleans are 0 and 1), other arrays are ArrayLists.
+	 */
+	private static class JsonReader {
+		private final String s;
+		private int pos = 0;
+
+		JsonReader(String s) {
+			this.s = s;
+		}
+
+		private char peek() {
+			while (Character.isWhitespace(s.charAt(pos))) {
+				pos++;
+			}
+			return s.charAt(pos);
+		}
+
+		private void expect(char c) {
+			if (peek() != c) {
+				throw new RuntimeException("JSON: " + c + " expected at " + pos);
+			}
+			pos++;
+		}
+
+		Object value() {
+			char c = peek();
+			if (c == '{') {
+				HashMap<String, Object> result = new HashMap<String, Object>();
+				pos++;
+				if (peek() == '}') {
+					pos++;
+					return result;
+				}
+				do {
+					String key = string();
+					expect(':');
+					result.put(key, value());
+				} while (next('}'));
+				return result;
+			}
+			if (c == '[') {
+				pos++;
+				if (peek() == ']') {
+					pos++;
+					return new double[0];
+				}
+				if ((peek() == '{') || (peek() == '[') || (peek() == '"')) {
+					ArrayList<Object> result = new ArrayList<Object>();
+					do {
+						result.add(value());
+					} while (next(']'));
+					return result;
+				}
+				double[] result = new double[16];
+				int n = 0;
+				do {
+					if (n == result.length) {
+						result = Arrays.copyOf(result, 2 * n);
+					}
+					result[n] = number();
+					n++;
+				} while (next(']'));
+				return Arrays.copyOf(result, n);
+			}
+			if (c == '"') {
+				return string();
+			}
+			if (s.startsWith("null", pos)) {
+				pos = pos + 4;
+				return null;
+			}
+			return number();
+		}
+
+		/**
+		 * Skips comma or closing bracket.
+		 *
+		 * @return true if comma (more elements)
+		 */
+		private boolean next(char close) {
+			char c = peek();
+			pos++;
+			if (c == ',') {
+				return true;
+			}
+			if (c != close) {
+				throw new RuntimeException("JSON: " + close + " expected at " + (pos - 1));
+			}
+			return false;
+		}
+
+		private String string() {
+			expect('"');
+			StringBuilder result = new StringBuilder();
+			char c = s.charAt(pos);
+			while (c != '"') {
+				if (c == '\\') {
+					pos++;
+					c = s.charAt(pos);
+					if (c == 'u') {
+						c = (char) Integer.parseInt(s.substring(pos + 1, pos + 5), 16);
+						pos = pos + 4;
+					} else if (c == 'n') {
+						c = '\n';
+					} else if (c == 't') {
+						c = '\t';
+					} else if (c == 'r') {
+						c = '\r';
+					} else if (c == 'b') {
+						c = '\b';
+					} else if (c == 'f') {
+						c = '\f';
+					}
+				}
+				result.append(c);
+				pos++;
+				c = s.charAt(pos);
+			}
+			pos++;
+			return result.toString();
+		}
+
+		private double number() {
+			peek();
+			if (s.startsWith("true", pos)) {
+				pos = pos + 4;
+				return 1;
+			}
+			if (s.startsWith("false", pos)) {
+				pos = pos + 5;
+				return 0;
+			}
+			int start = pos;
+			while ((pos < s.length()) && ("+-.eE".indexOf(s.charAt(pos)) >= 0 || Character.isDigit(s.charAt(pos)))) {
+				pos++;
+			}
+			return Double.parseDouble(s.substring(start, pos));
+		}
+	}
+}
@@ -8,6 +8,8 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -27,6 +29,10 @@ public class XgbRI extends QSRRModelRI {
 	private static final int validateEveryXTrees = 50;
 	private static final int stopIfLossDoesntDecreaseXIters = 249;
 	private static final float considerableRelativeLossDecrease = 0.01f;
+	private static final int threadsPerTrial = 2; // native threads of each booster during tuning
+	private static final int predictionBatchSize = 4096;
+	private static final float missingValue = -777f;
+	private static final int probeRows = 256; // rows for comparison of pure Java inference with XGBoost
 
 	private static final int maxTrees = 5000;
 	private static final int[] maxDepthRange = new int[] { 1, 24 };
@@ -37,6 +43,8 @@ public class XgbRI extends QSRRModelRI {
 	private static final float[] subsampleRange = new float[] { 0.3f, 1.0f };
 
 	private Booster mdl = null;
+	private boolean nativeFreeInference = false;
+	private TreeEnsemble trees = null; // pure Java copy of mdl (only with nativeFreeInference), built on first use
 	private float eta = 0.3f;
 	private float gamma = 0.0f;
 	private float lambda = 1.0f;
@@ -45,6 +53,7 @@ public class XgbRI extends QSRRModelRI {
 	private int minChildWeight = 1;
 
 	private int nTrees = -1;
+	private int nThreads = 0; // 0 - XGBoost default (all cores)
 
 	public XgbRI(ColumnFeatures genCol, FeaturesGenerator gen) {
 		super(genCol, gen);
@@ -79,32 +88,38 @@ public class XgbRI extends QSRRModelRI {
 		int maxDepth = 6;
 		int minChildWeight = 1;
 
-		private static float logrnd(float[] minmax) {
+		private static float log(double u, float[] minmax) {
 			double log10min = Math.log10(minmax[0]);
 			double log10max = Math.log10(minmax[1]);
-			double r = log10min + Math.random() * (log10max - log10min);
+			double r = log10min + u * (log10max - log10min);
 			r = Math.pow(10, r);
 			return (float) r;
 		}
 
-		private static float rnd(float[] minmax) {
-			double r = minmax[0] + Math.random() * (minmax[1] - minmax[0]);
+		private static float lin(double u, float[] minmax) {
+			double r = minmax[0] + u * (minmax[1] - minmax[0]);
 			return (float) r;
 		}
 
-		private static int rnd(int[] minmax) {
-			double r = minmax[0] - 0.5 + Math.random() * (minmax[1] - minmax[0] + 1);
-			return Math.round((float) r);
+		private static int lin(double u, int[] minmax) {
+			double r = minmax[0] - 0.5 + u * (minmax[1] - minmax[0] + 1);
+			return Math.max(minmax[0], Math.min(minmax[1], Math.round((float) r)));
 		}
 
-		public static Param rnd() {
+		/**
+		 * 
+		 * @param u point of unit cube (eta, gamma, lambda, subsample, maxDepth,
+		 *          minChildWeight)
+		 * @return hyperparameters
+		 */
+		public static Param fromUnit(double[] u) {
 			Param result = new Param();
-			result.eta = logrnd(etaRange);
-			result.gamma = logrnd(gammaRange);
-			result.lambda = logrnd(lambdaRange);
-			result.subsample = rnd(subsampleRange);
-			result.maxDepth = rnd(maxDepthRange);
-			result.minChildWeight = rnd(minChildWeightRange);
+			result.eta = log(u[0], etaRange);
+			result.gamma = log(u[1], gammaRange);
+			result.lambda = log(u[2], lambdaRange);
+			result.subsample = lin(u[3], subsampleRange);
+			result.maxDepth = lin(u[4], maxDepthRange);
+			result.minChildWeight = lin(u[5], minChildWeightRange);
 			return result;
 		}
 
@@ -121,35 +136,14 @@ public class XgbRI extends QSRRModelRI {
 		}
 	}
 
-	private float[][] features(ChemDataset set) {
-		return features(set.allSmiles(), set.allColumns());
-	}
-
-	private float[][] features(String[] smiles, int[] columns) {
-		getGen().precompute(smiles);
-		float[][] features = getGen().features(smiles);
-		float[][] features1 = new float[features.length][];
-		float[][] columnsFeatures = getGenCol().columnFeatures(columns);
-		for (int i = 0; i < features.length; i++) {
-			features1[i] = ArUtls.mergeArrays(columnsFeatures[i], features[i]);
-		}
-		return features1;
-	}
-
-	private DMatrix trainingSet(ChemDataset trainSet) throws IOException {
-		float[][] features = features(trainSet);
-		float[] labels = ArUtls.mult(0.001f, trainSet.allRetentions());
-		return ArUtls.dataSetToXGBooostDMatrix(features, labels);
-	}
-
 	private DMatrix featuresdm(ChemDataset set) throws XGBoostError {
 		float[][] features = features(set);
-		DMatrix f = new DMatrix(ArUtls.flatten(features), features.length, features[0].length, -777f);
+		DMatrix f = new DMatrix(ArUtls.flatten(features), features.length, features[0].length, missingValue);
 		return f;
 	}
 
 	private Pair<Booster, Integer> train(Param p, DMatrix trainSet, DMatrix testSet, float[] testSetLabels,
-			int trainSetSize) throws XGBoostError, IOException {
+			int trainSetSize, int threads) throws XGBoostError, IOException {
 		HashMap<String, Object> hm = new HashMap<String, Object>();
 		hm.put("eta", p.eta);
 		hm.put("gamma", p.gamma);
@@ -158,6 +152,9 @@ public class XgbRI extends QSRRModelRI {
 		hm.put("min_child_weight", p.minChildWeight);
 		hm.put("subsample", p.subsample);
 		hm.put("objective", "reg:pseudohubererror");
+		if (threads > 0) {
+			hm.put("nthread", threads);
+		}
 		if (trainSetSize > useHistMethodWithMoreThanXSamples) {
 			hm.put("tree_method", "hist");
 		}
@@ -187,6 +184,26 @@ public class XgbRI extends QSRRModelRI {
 		return Pair.of(x, iter);
 	}
 
+	/**
+	 * XGBoost builds indices of DMatrix (gradient index for hist, sorted column
+	 * pages for exact) on the first update and caches them in the DMatrix.
+	 * Building is not thread-safe, so matrices shared by concurrent tuning trials
+	 * are indexed here by a throwaway booster with the same tree method (and
+	 * default max_bin) before trials use them, trials then only read the indices.
+	 * 
+	 * @param dm       training matrix
+	 * @param dataSize number of rows
+	 */
+	private static void buildIndex(DMatrix dm, int dataSize) throws XGBoostError {
+		HashMap<String, Object> hm = new HashMap<String, Object>();
+		hm.put("objective", "reg:pseudohubererror");
+		hm.put("max_depth", 1);
+		if (dataSize > useHistMethodWithMoreThanXSamples) {
+			hm.put("tree_method", "hist");
+		}
+		XGBoost.train(dm, hm, 1, new HashMap<String, DMatrix>(), null, null).dispose();
+	}
+
 	private String validate(Booster x, DMatrix testSet, float[] testSetLabels, int iterNum)
 			throws IOException, XGBoostError {
 		float[] predictions = ArUtls.mult(1000, ArUtls.flatten(x.predict(testSet)));
@@ -198,41 +215,65 @@ public class XgbRI extends QSRRModelRI {
 	@Override
 	public void train(ChemDataset trainSet, ChemDataset validationSet) {
 		try {
-			DMatrix traindm = this.trainingSet(trainSet);
+			float[][] features = features(trainSet);
+			float[] labels = ArUtls.mult(0.001f, trainSet.allRetentions());
+			DMatrix traindm = ArUtls.dataSetToXGBooostDMatrix(features, labels);
 			DMatrix valdm = featuresdm(validationSet);
 			float[] valRI = validationSet.allRetentions();
 			if (isHyperparamsTune()) {
-				float bestAccuracy = Float.MAX_VALUE;
-				Param bestParams = null;
-				FileWriter fw = null;
-				if (getHyperparamsTuneFile() != null) {
-					fw = new FileWriter(getHyperparamsTuneFile());
+				// training matrices for fractions of the training set used by successive halving, they are
+				// slices of the full training matrix (with labels), built once and shared by all trials
+				HashMap<Integer, DMatrix> subsets = new HashMap<Integer, DMatrix>();
+				buildIndex(traindm, features.length);
+				subsets.put(features.length, traindm);
+				// trials are trained concurrently, threads budget is split between them, all trials share matrices
+				int threads = (nThreads > 0) ? nThreads : Runtime.getRuntime().availableProcessors();
+				int concurrentTrials = Math.max(1, threads / threadsPerTrial);
+				int threadsForTrial = Math.max(1, threads / concurrentTrials);
+				ForkJoinPool pool = new ForkJoinPool(concurrentTrials);
+				Param bestParams;
+				try {
+					bestParams = pool.submit(() -> tuneHyperparams(6, Param::fromUnit, features.length,
+							concurrentTrials > 1, accuracyMeasureTuning, (p, rows) -> {
+								try {
+									DMatrix dm;
+									synchronized (subsets) {
+										if (!subsets.containsKey(rows.length)) {
+											DMatrix slice = traindm.slice(rows);
+											buildIndex(slice, rows.length);
+											subsets.put(rows.length, slice);
+										}
+										dm = subsets.get(rows.length);
+									}
+									Pair<Booster, Integer> b = this.train(p, dm, valdm, valRI, rows.length,
+											threadsForTrial);
+									String accuracyMeasures = this.validate(b.getLeft(), valdm, valRI, b.getRight());
+									b.getLeft().dispose();
+									return accuracyMeasures;
+								} catch (XGBoostError | IOException e) {
+									e.printStackTrace();
+									throw new RuntimeException(e.getMessage());
+								}
+							})).get();
+				} catch (InterruptedException | ExecutionException e) {
+					e.printStackTrace();
+					throw new RuntimeException(e.getMessage());
+				} finally {
+					pool.shutdown();
 				}
-				for (int n = 0; n < getHyperparamsTuneAttempts(); n++) {
-					Param p = Param.rnd();
-					Pair<Booster, Integer> b = this.train(p, traindm, valdm, valRI, trainSet.size());
-					String accuracyMeasures = this.validate(b.getLeft(), valdm, valRI, b.getRight());
-					float accuracy = QSRRModelRI.accuracy(accuracyMeasureTuning, accuracyMeasures);
-					if (accuracy < bestAccuracy) {
-						bestAccuracy = accuracy;
-						bestParams = p;
+				for (DMatrix d : subsets.values()) {
+					if (d != traindm) {
+						d.dispose();
 					}
-					if (fw != null) {
-						fw.write(modelType() + " " + p.toString() + " " + accuracyMeasures + "\n");
-						fw.flush();
-					}
-					b.getLeft().dispose();
 				}
-
-				if (fw != null) {
-					fw.close();
+				if (bestParams != null) {
+					this.eta = bestParams.eta;
+					this.gamma = bestParams.gamma;
+					this.lambda = bestParams.lambda;
+					this.subsample = bestParams.subsample;
+					this.maxDepth = bestParams.maxDepth;
+					this.minChildWeight = bestParams.minChildWeight;
 				}
-				this.eta = bestParams.eta;
-				this.gamma = bestParams.gamma;
-				this.lambda = bestParams.lambda;
-				this.subsample = bestParams.subsample;
-				this.maxDepth = bestParams.maxDepth;
-				this.minChildWeight = bestParams.minChildWeight;
 			}
 			Param p = new Param();
 			p.eta = this.eta;
@@ -241,8 +282,9 @@ public class XgbRI extends QSRRModelRI {
 			p.subsample = this.subsample;
 			p.maxDepth = this.maxDepth;
 			p.minChildWeight = this.minChildWeight;
-			Pair<Booster, Integer> b = this.train(p, traindm, valdm, valRI, trainSet.size());
+			Pair<Booster, Integer> b = this.train(p, traindm, valdm, valRI, trainSet.size(), nThreads);
 			this.mdl = b.getKey();
+			this.trees = null;
 			this.nTrees = b.getRight();
 			traindm.dispose();
 			valdm.dispose();
@@ -257,10 +299,29 @@ public class XgbRI extends QSRRModelRI {
 
 	@Override
 	public float[] predict(String[] smiles, int[] columns) {
+		float[][] features = features(smiles, columns);
+		TreeEnsemble t = trees();
+		if (t != null) {
+			return ArUtls.mult(1000, t.predict(features));
+		}
+		int d = features[0].length;
+		float[] predictions = new float[features.length];
+		// row-major input of one batch, large requests are not flattened at once
+		float[] buffer = new float[Math.min(features.length, predictionBatchSize) * d];
 		try {
-			float[][] features = features(smiles, columns);
-			DMatrix f = new DMatrix(ArUtls.flatten(features), features.length, features[0].length, -777f);
-			float[] predictions = ArUtls.mult(1000, ArUtls.flatten(mdl.predict(f)));
+			for (int start = 0; start < features.length; start += predictionBatchSize) {
+				int n = Math.min(predictionBatchSize, features.length - start);
+				for (int i = 0; i < n; i++) {
+					System.arraycopy(features[start + i], 0, buffer, i * d, d);
+				}
+				// DMatrix of xgboost4j 1.5 can't be refilled, a new one is created for each batch
+				DMatrix f = new DMatrix(buffer, n, d, missingValue);
+				float[][] p = mdl.predict(f);
+				f.dispose();
+				for (int i = 0; i < n; i++) {
+					predictions[start + i] = 1000 * p[i][0];
+				}
+			}
 			return predictions;
 		} catch (XGBoostError e) {
 			e.printStackTrace();
@@ -318,6 +379,7 @@ public class XgbRI extends QSRRModelRI {
 		File f = new File(directory, "model");
 		try {
 			mdl = XGBoost.loadModel(f.getAbsolutePath() + ".json");
+			trees = null;
 		} catch (XGBoostError e) {
 			e.printStackTrace();
 			throw new IOException(e.getMessage());
@@ -325,6 +387,18 @@ public class XgbRI extends QSRRModelRI {
 
 	}
 
+	@Override
+	public double estimateTrainingCost(int trainSize, int validationSize) {
+		double depth = isHyperparamsTune() ? (maxDepthRange[0] + maxDepthRange[1]) / 2.0 : maxDepth;
+		double trees = 2 * stopIfLossDoesntDecreaseXIters; // typical number of trees with early stopping
+		return numFits(trainSize) * trees * depth * (trainSize + validationSize / validateEveryXTrees) * numFeatures();
+	}
+
+	@Override
+	public double estimateTrainingMemory(int trainSize, int validationSize, int nThreads) {
+		return 12.0 * numFeatures() * (trainSize + validationSize); // features, DMatrix and histograms
+	}
+
 	@Override
 	public String modelType() {
 		return "XGBOOST";
@@ -343,6 +417,72 @@ public class XgbRI extends QSRRModelRI {
 		return "XGBOOST " + s + " nTrees " + nTrees;
 	}
 
+	/**
+	 * If enabled, predict uses pure Java inference (TreeEnsemble) instead of
+	 * Booster.predict: no native DMatrix is created for predictions. The
+	 * ensemble is built from the JSON dump of the booster on first use and is
+	 * checked against Booster.predict on probe rows (values at split conditions
+	 * and missing values). Disabled by default.
+	 * 
+	 * @param nativeFreeInference true to enable
+	 */
+	public synchronized void setNativeFreeInference(boolean nativeFreeInference) {
+		this.nativeFreeInference = nativeFreeInference;
+		this.trees = null;
+	}
+
+	/**
+	 * 
+	 * @return pure Java ensemble, null if nativeFreeInference is disabled or the
+	 *         model is not trained
+	 */
+	private synchronized TreeEnsemble trees() {
+		if (!nativeFreeInference || (mdl == null)) {
+			return null;
+		}
+		if (trees == null) {
+			try {
+				File json = Files.createTempFile("XgbRI", ".json").toFile();
+				try {
+					mdl.saveModel(json.getAbsolutePath());
+					TreeEnsemble t = TreeEnsemble.load(json, missingValue);
+					checkTrees(t);
+					trees = t;
+				} finally {
+					json.delete();
+				}
+			} catch (IOException | XGBoostError e) {
+				e.printStackTrace();
+				throw new RuntimeException(e.getMessage());
+			}
+		}
+		return trees;
+	}
+
+	/**
+	 * Pure Java predictions should be the same as Booster.predict (up to float
+	 * rounding).
+	 */
+	private void checkTrees(TreeEnsemble t) throws XGBoostError {
+		int d = numFeatures();
+		float[][] probe = t.probeRows(probeRows, d, missingValue);
+		DMatrix dm = new DMatrix(ArUtls.flatten(probe), probe.length, d, missingValue);
+		float[][] expected = mdl.predict(dm);
+		dm.dispose();
+		float[] p = t.predict(probe);
+		for (int i = 0; i < p.length; i++) {
+			if (Math.abs(p[i] - expected[i][0]) > 1E-5f * (1 + Math.abs(expected[i][0]))) {
+				throw new RuntimeException("Pure Java inference doesn't match XGBoost: " + p[i] + " "
+						+ expected[i][0]);
+			}
+		}
+	}
+
+	@Override
+	public void setNativeThreads(int nThreads) {
+		this.nThreads = nThreads;
+	}
+
 	@Override
 	public ModelRI createSimilar() {
 		XgbRI result = (XgbRI) QSRRModelRI.getModel(this.modelType(), this.getGenCol(), this.getGen(),
@@ -353,6 +493,8 @@ public class XgbRI extends QSRRModelRI {
 		result.subsample = this.subsample;
 		result.maxDepth = this.maxDepth;
 		result.minChildWeight = this.minChildWeight;
+		result.nThreads = this.nThreads;
+		result.nativeFreeInference = this.nativeFreeInference;
 		return result;
 	}
 }